@@ -0,0 +1,230 @@
+package microsim.alignment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
+
+import microsim.alignment.outcome.AbstractOutcomeAlignment;
+import microsim.alignment.outcome.AlignmentOutcomeClosure;
+import microsim.alignment.probability.AbstractProbabilityAlignment;
+import microsim.alignment.probability.AlignmentProbabilityClosure;
+import microsim.data.MultiKeyCoefficientMap;
+import microsim.engine.ParallelUtils;
+import microsim.engine.SimulationEngine;
+
+import org.apache.commons.collections.MapIterator;
+import org.apache.commons.collections.Predicate;
+import org.apache.commons.collections.keyvalue.MultiKey;
+
+/**
+ * Alignment of disjoint subpopulations (cells, e.g. age band x gender x region), each with its own target share.
+ *
+ * Instead of filtering the whole population once per cell, the agents are assigned to their cell by the partition
+ * in a single pass, and each cell is then aligned independently with its own alignment, created by an {@link AlignmentFactory}
+ * (or as a new instance of the class of a given alignment).
+ * Each cell draws the random numbers of the alignment from its own stream, seeded from one draw of the random
+ * generator of the simulation engine and the position of the cell in the target map. Agents in cells that have
+ * no target are left untouched.
+ *
+ * Cells are aligned one after the other, in the order of the target map, unless setParallel(true) is called to
+ * align them on a fork/join pool. In parallel, the closure must be thread-safe (it is called for agents of
+ * different cells at the same time), and results do not depend on the order in which cells are processed
+ * only if the closure never draws from the random generator of the simulation engine (e.g. in resample()), whose
+ * draws would otherwise be interleaved differently at each run.
+ *
+ * @param <T> the type of the agents.
+ * @param <K> the type of the cell keys, e.g. MultiKey when the targets are read from a MultiKeyCoefficientMap.
+ */
+public class GroupAlignment<T, K> {
+
+	/** Assigns agents to cells. */
+	public interface Partition<T, K> {
+
+		/** @return the key of the cell of the agent, or null if the agent is not to be aligned. */
+		K getCell(T agent);
+
+	}
+
+	/** Creates the alignment of each cell, configured as needed: its random generator is then replaced by the stream of the cell. */
+	public interface AlignmentFactory<A> {
+
+		A newAlignment();
+
+	}
+
+	private final Partition<T, K> partition;
+
+	private boolean parallel = false;
+
+	public GroupAlignment(Partition<T, K> partition) {
+		this.partition = partition;
+	}
+
+	/** Align the cells on a fork/join pool (false by default), see the class documentation for the conditions. */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Read the targets from a map whose keys are the cells, taking the first value column as the target.
+	 */
+	public static Map<MultiKey, Double> getTargets(MultiKeyCoefficientMap map) {
+		final Map<MultiKey, Double> targets = new LinkedHashMap<MultiKey, Double>();
+		for (MapIterator iterator = map.mapIterator(); iterator.hasNext();) {
+			final MultiKey key = (MultiKey) iterator.next();
+			final Object value = iterator.getValue();
+			targets.put(key, ((Number) (value instanceof Object[] ? ((Object[]) value)[0] : value)).doubleValue());
+		}
+		return targets;
+	}
+
+	/**
+	 * Align the probabilities of each cell to its target share.
+	 *
+	 * @param alignment the alignment method: each cell is aligned by a new instance of its class, which must have a public 
+	 * no-argument constructor. Only the class is used, so any configuration of the given instance is not copied: use 
+	 * {@link #align(List, Predicate, AlignmentFactory, AlignmentProbabilityClosure, Map)} for configured alignments.
+	 * @param targetShares the target share of each cell, in a map with a deterministic iteration order (e.g. a LinkedHashMap).
+	 */
+	public void align(List<T> agentList, Predicate filter, AbstractProbabilityAlignment<T> alignment, AlignmentProbabilityClosure<T> closure, Map<K, Double> targetShares) {
+		align(agentList, filter, classFactory(alignment), closure, targetShares);
+	}
+
+	/**
+	 * Align the probabilities of each cell to its target share.
+	 *
+	 * @param alignmentFactory creates the alignment of each cell; it is called once per cell with agents, possibly from several threads in parallel.
+	 * @param targetShares the target share of each cell, in a map with a deterministic iteration order (e.g. a LinkedHashMap).
+	 */
+	public void align(List<T> agentList, Predicate filter, final AlignmentFactory<? extends AbstractProbabilityAlignment<T>> alignmentFactory, final AlignmentProbabilityClosure<T> closure, Map<K, Double> targetShares) {
+		final List<CellTask> tasks = new ArrayList<CellTask>();
+		final Map<K, List<T>> cells = partition(agentList, filter);
+		final long seed = SimulationEngine.getRnd().nextLong();
+		int index = 0;
+		for (Map.Entry<K, Double> target : targetShares.entrySet()) {
+			final List<T> cell = cells.get(target.getKey());
+			final double targetShare = target.getValue();
+			final long cellSeed = ParallelUtils.streamSeed(seed, index++);
+			if (cell == null)
+				continue;
+			tasks.add(new CellTask() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					final AbstractProbabilityAlignment<T> cellAlignment = alignmentFactory.newAlignment();
+					cellAlignment.setRandom(new Random(cellSeed));
+					cellAlignment.align(cell, null, closure, targetShare);
+				}
+			});
+		}
+		run(tasks);
+	}
+
+	/**
+	 * Align the outcomes of each cell to its target share.
+	 *
+	 * @param alignment the alignment method: each cell is aligned by a new instance of its class, which must have a public 
+	 * no-argument constructor. Only the class is used, so any configuration of the given instance is not copied: use 
+	 * {@link #align(List, Predicate, AlignmentFactory, AlignmentOutcomeClosure, Map, int)} for configured alignments.
+	 * @param targetShares the target share of each cell, in a map with a deterministic iteration order (e.g. a LinkedHashMap).
+	 */
+	public void align(List<T> agentList, Predicate filter, AbstractOutcomeAlignment<T> alignment, AlignmentOutcomeClosure<T> closure, Map<K, Double> targetShares, int maxResamplingAttempts) {
+		align(agentList, filter, classFactory(alignment), closure, targetShares, maxResamplingAttempts);
+	}
+
+	/**
+	 * Align the outcomes of each cell to its target share.
+	 *
+	 * @param alignmentFactory creates the alignment of each cell; it is called once per cell with agents, possibly from several threads in parallel.
+	 * @param targetShares the target share of each cell, in a map with a deterministic iteration order (e.g. a LinkedHashMap).
+	 */
+	public void align(List<T> agentList, Predicate filter, final AlignmentFactory<? extends AbstractOutcomeAlignment<T>> alignmentFactory, final AlignmentOutcomeClosure<T> closure, Map<K, Double> targetShares, final int maxResamplingAttempts) {
+		final List<CellTask> tasks = new ArrayList<CellTask>();
+		final Map<K, List<T>> cells = partition(agentList, filter);
+		final long seed = SimulationEngine.getRnd().nextLong();
+		int index = 0;
+		for (Map.Entry<K, Double> target : targetShares.entrySet()) {
+			final List<T> cell = cells.get(target.getKey());
+			final double targetShare = target.getValue();
+			final long cellSeed = ParallelUtils.streamSeed(seed, index++);
+			if (cell == null)
+				continue;
+			tasks.add(new CellTask() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					final AbstractOutcomeAlignment<T> cellAlignment = alignmentFactory.newAlignment();
+					cellAlignment.setRandom(new Random(cellSeed));
+					cellAlignment.align(cell, null, closure, targetShare, maxResamplingAttempts);
+				}
+			});
+		}
+		run(tasks);
+	}
+
+	private Map<K, List<T>> partition(List<T> agentList, Predicate filter) {
+		final Map<K, List<T>> cells = new HashMap<K, List<T>>();
+		for (T agent : agentList) {
+			if (filter != null && ! filter.evaluate(agent))
+				continue;
+			final K key = partition.getCell(agent);
+			if (key == null)
+				continue;
+			List<T> cell = cells.get(key);
+			if (cell == null) {
+				cell = new ArrayList<T>();
+				cells.put(key, cell);
+			}
+			cell.add(agent);
+		}
+		return cells;
+	}
+
+	/** A factory of new instances of the class of the alignment. */
+	private static <A> AlignmentFactory<A> classFactory(A alignment) {
+		@SuppressWarnings("unchecked")
+		final Class<? extends A> alignmentClass = (Class<? extends A>) alignment.getClass();
+		try {
+			alignmentClass.getConstructor();
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("The alignment class " + alignmentClass.getName() + " must have a public no-argument constructor", e);
+		}
+		return new AlignmentFactory<A>() {
+			@Override
+			public A newAlignment() {
+				try {
+					return alignmentClass.newInstance();
+				} catch (InstantiationException e) {
+					throw new IllegalArgumentException("The alignment class " + alignmentClass.getName() + " must have a public no-argument constructor", e);
+				} catch (IllegalAccessException e) {
+					throw new IllegalArgumentException("The alignment class " + alignmentClass.getName() + " must have a public no-argument constructor", e);
+				}
+			}
+		};
+	}
+
+	private abstract class CellTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private void run(final List<CellTask> tasks) {
+		if (! parallel || tasks.size() < 2) {
+			for (CellTask task : tasks)
+				task.invoke();
+			return;
+		}
+
+		ParallelUtils.getPool().invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+}
@@ -1,6 +1,9 @@
 package microsim.alignment.outcome;
 
 import java.util.List;
+import java.util.Random;
+
+import microsim.engine.SimulationEngine;
 
 import org.apache.commons.collections.Predicate;
 
@@ -40,6 +43,17 @@ import org.apache.commons.collections.Predicate;
  */
 public abstract class AbstractOutcomeAlignment<T> {
 
+	private Random random = null;
+	
+	/** Draw the random numbers of the alignment from random, instead of the random generator of the simulation engine. */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+	
+	protected Random getRandom() {
+		return random != null ? random : SimulationEngine.getRnd();
+	}
+	
 	public abstract void align(List<T> agentList, Predicate filter, AlignmentOutcomeClosure<T> closure, double targetShare, int maxResamplingAttempts);
 	
 	public abstract void align(List<T> agentList, Predicate filter, AlignmentOutcomeClosure<T> closure, int targetNumber, int maxResamplingAttempts);
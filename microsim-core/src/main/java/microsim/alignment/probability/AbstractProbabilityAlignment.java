@@ -1,5 +1,6 @@
 package microsim.alignment.probability;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
@@ -7,7 +8,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import microsim.engine.ParallelUtils;
+import microsim.engine.SimulationEngine;
+
+import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Predicate;
 
 /**
@@ -46,6 +55,26 @@ import org.apache.commons.collections.Predicate;
  */
 public abstract class AbstractProbabilityAlignment<T> {
 	
+	/** 
+	 * Populations of at least this size have their probabilities evaluated on a fork/join pool by the alignments 
+	 * that support it, in which case the closure must be thread-safe. By default evaluation is sequential.
+	 */
+	public static int parallelThreshold = Integer.MAX_VALUE;
+	
+	/** Number of agents evaluated by each task of the fork/join pool. */
+	private static final int PARALLEL_CHUNK = 4096;
+	
+	private Random random = null;
+	
+	/** Draw the random numbers of the alignment from random, instead of the random generator of the simulation engine. */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+	
+	protected Random getRandom() {
+		return random != null ? random : SimulationEngine.getRnd();
+	}
+	
 	public abstract void align(List<T> agentList, Predicate filter, AlignmentProbabilityClosure<T> closure, double targetShare);
 
 	protected Map<T, Double> sortByComparator(Map<T, Double> unsortedMap,
@@ -74,4 +103,178 @@ public abstract class AbstractProbabilityAlignment<T> {
 
 		return sortedMap;
 	}
+	
+	protected static ForkJoinPool getPool() {
+		return ParallelUtils.getPool();
+	}
+	
+	/**
+	 * @return the agents of the list that pass the filter, or the list itself if there is no filter and it has 
+	 * random access, in which case the alignment must not modify it.
+	 */
+	protected List<T> select(List<T> agentList, Predicate filter) {
+		if (filter == null && agentList instanceof RandomAccess)
+			return agentList;
+		
+		List<T> list = new ArrayList<T>();		
+		if (filter != null)
+			CollectionUtils.select(agentList, filter, list);
+		else
+			list.addAll(agentList);
+		return list;
+	}
+	
+	/**
+	 * Store the probability of the i-th agent of the list in probabilities[i], evaluating each agent once. 
+	 * A batch closure evaluates the whole list itself; otherwise closure.getProbability() is called on the 
+	 * fork/join pool when the list has at least {@link #parallelThreshold} agents.
+	 */
+	protected void getProbabilities(List<T> list, AlignmentProbabilityClosure<T> closure, double[] probabilities) {
+		if (closure instanceof AlignmentProbabilityBatchClosure)
+			((AlignmentProbabilityBatchClosure<T>) closure).getProbabilities(list, probabilities);
+		else if (list.size() >= parallelThreshold)
+			getPool().invoke(new ProbabilityTask<T>(list, closure, probabilities, 0, list.size()));
+		else {
+			int i = 0;
+			for (T agent : list)
+				probabilities[i++] = closure.getProbability(agent);
+		}
+	}
+	
+	private static class ProbabilityTask<T> extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final List<T> list;
+		private final AlignmentProbabilityClosure<T> closure;
+		private final double[] probabilities;
+		private final int from, to;
+		
+		ProbabilityTask(List<T> list, AlignmentProbabilityClosure<T> closure, double[] probabilities, int from, int to) {
+			this.list = list;
+			this.closure = closure;
+			this.probabilities = probabilities;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_CHUNK) {
+				for (int i = from; i < to; i++)
+					probabilities[i] = closure.getProbability(list.get(i));
+			} else {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new ProbabilityTask<T>(list, closure, probabilities, from, middle), new ProbabilityTask<T>(list, closure, probabilities, middle, to));
+			}
+		}
+		
+	}
+	
+	/**
+	 * Partially order index so that its first k elements are the indexes of the k largest scores, in no particular order. 
+	 * Uses quickselect with median-of-three pivots, in expected linear time, falling back to heapsort on ranges 
+	 * where the pivots are repeatedly bad. 
+	 * 
+	 * @param scores the scores, which are not modified. They must not be NaN, as NaN does not compare with the pivots.
+	 * @param index the indexes of the scores to select from, usually 0 to scores.length - 1.
+	 * @param k the number of largest scores to select.
+	 */
+	protected static void selectLargest(double[] scores, int[] index, int k) {
+		int from = 0, to = index.length - 1;
+		int depth = 2 * (32 - Integer.numberOfLeadingZeros(index.length));
+		if (k <= 0 || k >= index.length)
+			return;
+		
+		while (to > from) {
+			if (depth-- == 0) {
+				heapSortDescending(scores, index, from, to);
+				return;
+			}
+			
+			// Median of three as pivot, partitioning in descending order of scores
+			final int middle = (from + to) >>> 1;
+			if (scores[index[middle]] > scores[index[from]]) swap(index, middle, from);
+			if (scores[index[to]] > scores[index[from]]) swap(index, to, from);
+			if (scores[index[to]] > scores[index[middle]]) swap(index, to, middle);
+			final double pivot = scores[index[middle]];
+			
+			int i = from, j = to;
+			while (i <= j) {
+				while (scores[index[i]] > pivot) i++;
+				while (scores[index[j]] < pivot) j--;
+				if (i <= j) {
+					swap(index, i, j);
+					i++;
+					j--;
+				}
+			}
+			
+			// Now [from, j] >= pivot >= [i, to]
+			if (k - 1 <= j)
+				to = j;
+			else if (k - 1 >= i)
+				from = i;
+			else
+				return;
+		}
+	}
+	
+	private static void heapSortDescending(double[] scores, int[] index, int from, int to) {
+		final int n = to - from + 1;
+		for (int i = n / 2 - 1; i >= 0; i--)
+			siftDown(scores, index, from, i, n);
+		for (int end = n - 1; end > 0; end--) {
+			swap(index, from, from + end);
+			siftDown(scores, index, from, 0, end);
+		}
+	}
+	
+	/** Sift down in a min-heap, so that the heap sort leaves the largest scores first. */
+	private static void siftDown(double[] scores, int[] index, int offset, int i, int n) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n)
+				return;
+			if (child + 1 < n && scores[index[offset + child + 1]] < scores[index[offset + child]])
+				child++;
+			if (scores[index[offset + child]] >= scores[index[offset + i]])
+				return;
+			swap(index, offset + i, offset + child);
+			i = child;
+		}
+	}
+	
+	private static void swap(int[] index, int i, int j) {
+		final int t = index[i];
+		index[i] = index[j];
+		index[j] = t;
+	}
+	
+	/**
+	 * @return for each agent of the list, whether it is one of the ceil(targetShare * n) agents with the largest scores. 
+	 * NaN scores rank below all others, including negative infinity.
+	 */
+	protected static boolean[] selectTopShare(double[] scores, double targetShare) {
+		final int n = scores.length;
+		final int k = (int) Math.min(n, Math.ceil(targetShare * n));
+		for (int i = 0; i < n; i++) {
+			if (Double.isNaN(scores[i])) {
+				scores = scores.clone();
+				for (int j = i; j < n; j++)
+					if (Double.isNaN(scores[j]))
+						scores[j] = Double.NEGATIVE_INFINITY;
+				break;
+			}
+		}
+		final int[] index = new int[n];
+		for (int i = 0; i < n; i++)
+			index[i] = i;
+		selectLargest(scores, index, k);
+		
+		final boolean[] selected = new boolean[n];
+		for (int i = 0; i < k; i++)
+			selected[index[i]] = true;
+		return selected;
+	}
 }
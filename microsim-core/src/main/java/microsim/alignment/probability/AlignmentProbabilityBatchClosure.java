@@ -0,0 +1,15 @@
+package microsim.alignment.probability;
+
+import java.util.List;
+
+/**
+ * A closure that can evaluate the probabilities of a whole list of agents at once, e.g. by delegating to
+ * IBinaryChoiceRegression.getProbabilities(List, double[]). The probability alignments use it, instead of
+ * calling getProbability() on each agent, when the closure implements it.
+ */
+public interface AlignmentProbabilityBatchClosure<T> extends AlignmentProbabilityClosure<T> {
+
+	/** Store the probability of the i-th agent of the list in probabilities[i]. */
+	void getProbabilities(List<T> agents, double[] probabilities);
+
+}
@@ -0,0 +1,183 @@
+package microsim.alignment.probability;
+
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+import microsim.exception.SimulationRuntimeException;
+
+import org.apache.commons.collections.Predicate;
+
+/**
+ * Logit scaling alignment (Stephensen, "Logit scaling: A general method for alignment in microsimulation models",
+ * International Journal of Microsimulation, 2016): the same shift is added to the log-odds of the probability of
+ * every agent, so that the sum of the aligned probabilities equals the target number. Unlike multiplicative scaling,
+ * aligned probabilities stay in [0,1] and the odds ratios between agents are preserved.
+ *
+ * The shift is the root of an increasing function of one variable, found by Newton iterations safeguarded by
+ * bisection within a finite bracket of the root, each of which is one pass over the log-odds; the sums of the passes are computed on the fork/join
+ * pool when there are at least {@link #parallelThreshold} agents. Agents with a probability of 0 or 1 keep it.
+ */
+public class LogitScalingAlignment<T> extends AbstractProbabilityAlignment<T> {
+
+	/** Tolerance on the difference between the sum of the aligned probabilities and the target number. */
+	private static final double TOLERANCE = 1.e-9;
+
+	private static final int MAX_ITERATIONS = 100;
+
+	/** Number of log-odds summed by each task of the fork/join pool. */
+	private static final int REDUCTION_CHUNK = 8192;
+
+	private double shift = 0.;
+
+	@Override
+	public void align(List<T> agentList, Predicate filter, AlignmentProbabilityClosure<T> closure, double targetShare) {
+		if (targetShare < 0 || targetShare > 1) {
+			System.err.println("target probability must lie in [0,1]");
+			System.exit(0);
+		}
+
+		List<T> list = select(agentList, filter);
+
+		int n = list.size();
+		final double[] probabilities = new double[n];
+		getProbabilities(list, closure, probabilities);
+
+		// Log-odds of the agents whose probability can be scaled; the others contribute a fixed number of positive outcomes
+		final double[] logOdds = new double[n];
+		int m = 0;
+		double fixed = 0.;
+		for (int i=0; i<n; i++) {
+			final double p = probabilities[i];
+			if (p > 0. && p < 1.)
+				logOdds[m++] = Math.log(p / (1 - p));
+			else
+				fixed += p >= 1. ? 1. : 0.;
+		}
+		final double target = targetShare * n - fixed;
+
+		if (target <= 0.)
+			shift = Double.NEGATIVE_INFINITY;
+		else if (target >= m)
+			shift = Double.POSITIVE_INFINITY;
+		else
+			shift = solve(logOdds, m, target);
+
+		for (int i=0; i<n; i++) {
+			T agent = list.get(i);
+			final double p = probabilities[i];
+			if (p > 0. && p < 1.)
+				closure.align(agent, logistic(Math.log(p / (1 - p)) + shift));
+			else
+				closure.align(agent, p);
+		}
+	}
+
+	/**
+	 * @return the shift added to the log-odds by the last alignment, infinite when the target could only be
+	 * reached by setting all the probabilities that are not 0 or 1 to 0 (negative) or 1 (positive).
+	 */
+	public double getShift() {
+		return shift;
+	}
+
+	private static double logistic(double x) {
+		return 1. / (1. + Math.exp(- x));
+	}
+
+	/**
+	 * Find the shift such that the sum of logistic(logOdds[i] + shift) over the first m log-odds is target,
+	 * with 0 < target < m.
+	 *
+	 * The root lies between logit(target / m) - max(logOdds) and logit(target / m) - min(logOdds), where every
+	 * aligned probability is at most, respectively at least, target / m. Newton steps that leave this bracket,
+	 * for instance because the derivative vanishes far from the root, are replaced by bisections of it.
+	 *
+	 * @throws SimulationRuntimeException if the iterations do not converge.
+	 */
+	private static double solve(double[] logOdds, int m, double target) {
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < m; i++) {
+			min = Math.min(min, logOdds[i]);
+			max = Math.max(max, logOdds[i]);
+		}
+		final double targetLogOdds = Math.log(target / (m - target));
+		double lower = targetLogOdds - max, upper = targetLogOdds - min;
+		if (lower >= upper)
+			return lower;		// all log-odds are equal
+
+		double shift = targetLogOdds - 0.5 * (min + max);
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+			final double[] sums = sum(logOdds, m, shift);
+			final double excess = sums[0] - target;
+			if (Math.abs(excess) <= TOLERANCE * Math.max(1., target))
+				return shift;
+
+			// The sum increases with the shift, so the root lies on the side opposite to the excess
+			if (excess > 0.)
+				upper = shift;
+			else
+				lower = shift;
+
+			double next = sums[1] > 0. ? shift - excess / sums[1] : Double.NaN;
+			if (! (next > lower && next < upper))
+				next = 0.5 * (lower + upper);
+			if (next == shift || next <= lower || next >= upper)
+				return shift;		// the bracket cannot be narrowed any more in double precision
+			shift = next;
+		}
+		throw new SimulationRuntimeException("Logit scaling alignment did not converge in " + MAX_ITERATIONS + " iterations: the shift is between " + lower + " and " + upper);
+	}
+
+	/**
+	 * @return the sum of the aligned probabilities of the first m log-odds and the sum of their derivatives with
+	 * respect to the shift.
+	 */
+	private static double[] sum(double[] logOdds, int m, double shift) {
+		if (m >= parallelThreshold)
+			return getPool().invoke(new SumTask(logOdds, shift, 0, m));
+		return sum(logOdds, shift, 0, m);
+	}
+
+	private static double[] sum(double[] logOdds, double shift, int from, int to) {
+		double sum = 0., derivative = 0.;
+		for (int i = from; i < to; i++) {
+			final double p = logistic(logOdds[i] + shift);
+			sum += p;
+			derivative += p * (1 - p);
+		}
+		return new double[] { sum, derivative };
+	}
+
+	/** Sums over halves of the range, split at fixed points so that the result does not depend on scheduling. */
+	private static class SumTask extends RecursiveTask<double[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final double[] logOdds;
+		private final double shift;
+		private final int from, to;
+
+		SumTask(double[] logOdds, double shift, int from, int to) {
+			this.logOdds = logOdds;
+			this.shift = shift;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected double[] compute() {
+			if (to - from <= REDUCTION_CHUNK)
+				return sum(logOdds, shift, from, to);
+			final int middle = (from + to) >>> 1;
+			final SumTask right = new SumTask(logOdds, shift, middle, to);
+			right.fork();
+			final double[] left = new SumTask(logOdds, shift, from, middle).compute();
+			final double[] sums = right.join();
+			sums[0] += left[0];
+			sums[1] += left[1];
+			return sums;
+		}
+
+	}
+
+}
@@ -1,14 +1,9 @@
 package microsim.alignment.probability;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Predicate;
 
-import microsim.engine.SimulationEngine;
-
 public class MultiplicativeScalingAlignment<T> extends AbstractProbabilityAlignment<T> {
 
 	@Override
@@ -18,22 +13,17 @@ public class MultiplicativeScalingAlignment<T> extends AbstractProbabilityAlignm
 			System.exit(0);
 		}
 		
-		List<T> list = new ArrayList<T>();		
-		if (filter != null)
-			CollectionUtils.select(agentList, filter, list);
-		else
-			list.addAll(agentList);
-		
-		Collections.shuffle(list, SimulationEngine.getRnd());
+		List<T> list = select(agentList, filter);
 		int n = list.size();
-		double sum = 0;
+		
+		// evaluate each probability once
+		final double[] probabilities = new double[n];
+		getProbabilities(list, closure, probabilities);
 		
 		// compute total expected number of simulated positive outcomes
-		sum = 0; 
-		for (int i=0; i<n; i++) {
-			T agent = list.get(i);
-			sum += closure.getProbability(agent);
-		}
+		double sum = 0; 
+		for (int i=0; i<n; i++)
+			sum += probabilities[i];
 		
 		// compute correction factor
 		double m = targetShare * n / sum; // multiplicative factor
@@ -41,8 +31,7 @@ public class MultiplicativeScalingAlignment<T> extends AbstractProbabilityAlignm
 		// correct individual probabilities
 		for (int i=0; i<n; i++) {
 			T agent = list.get(i);
-			double val = closure.getProbability(agent);
-			closure.align(agent, val * m);			
+			closure.align(agent, probabilities[i] * m);			
 		}
 
 	}	
@@ -1,14 +1,8 @@
 package microsim.alignment.probability;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 
-import microsim.engine.SimulationEngine;
-
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Predicate;
 
 public class SBDLAlignment<T> extends AbstractProbabilityAlignment<T> {
@@ -21,32 +15,39 @@ public class SBDLAlignment<T> extends AbstractProbabilityAlignment<T> {
 			System.exit(0);
 		}
 		
-		List<T> list = new ArrayList<T>();		
-		if (filter != null)
-			CollectionUtils.select(agentList, filter, list);
-		else
-			list.addAll(agentList);
+		List<T> list = select(agentList, filter);
 		
-		Collections.shuffle(list, SimulationEngine.getRnd());
 		int n = list.size();
 		
-		Map<T, Double> map = new LinkedHashMap<T, Double>();
+		// Scores and random draws in primitive arrays; the draws come first so they do not depend on how probabilities are evaluated
+		final double[] scores = new double[n];
+		final double[] probabilities = new double[n];
+		final Random rnd = getRandom();
+		for (int i=0; i<n; i++)
+			scores[i] = rnd.nextDouble();
+		getProbabilities(list, closure, probabilities);
 		for (int i=0; i<n; i++) {
-			T agent = list.get(i);
-			double p = closure.getProbability(agent);
-			double r = SimulationEngine.getRnd().nextDouble();
-			
-			map.put(agent, new Double(Math.log(1/r-1)+Math.log(p/(1-p))));
+			final double p = probabilities[i];
+			final double r = scores[i];
+			// Certain outcomes stay certain, whatever the draw (the logit alone would give NaN for some draws)
+			if (p <= 0)
+				scores[i] = Double.NEGATIVE_INFINITY;
+			else if (p >= 1)
+				scores[i] = Double.POSITIVE_INFINITY;
+			else
+				scores[i] = Math.log(1/r-1)+Math.log(p/(1-p));
 		}
-		sortByComparator(map, false); // true for ascending order
+		
+		// Only the top targetShare*n agents are needed, not a full sort
+		final boolean[] selected = selectTopShare(scores, targetShare);
 		for (int i=0; i<n; i++) {
 			T agent = list.get(i); 
-			if (i<targetShare*n) 
+			if (selected[i]) 
 				closure.align(agent, 1.0);				
-			else 
-				closure.align(agent, 0.0);
+			else
+				closure.align(agent, 0.0);				
 		}
-		
+
 	}
 
 }
@@ -1,14 +1,10 @@
 package microsim.alignment.probability;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Predicate;
 
-import microsim.engine.SimulationEngine;
-
 public class SidewalkAlignment<T> extends AbstractProbabilityAlignment<T> {
 
 	@Override
@@ -18,22 +14,32 @@ public class SidewalkAlignment<T> extends AbstractProbabilityAlignment<T> {
 			System.exit(0);
 		}
 		
-		List<T> list = new ArrayList<T>();		
-		if (filter != null)
-			CollectionUtils.select(agentList, filter, list);
-		else
-			list.addAll(agentList);
-		
-		Collections.shuffle(list, SimulationEngine.getRnd());
+		List<T> list = select(agentList, filter);
 		int n = list.size();
-		double sum = 0;
 		
-		sum = 0;
-		for (int i=0; i<n; i++) {
+		// evaluate each probability once, in list order
+		final double[] probabilities = new double[n];
+		getProbabilities(list, closure, probabilities);
+		
+		// visit the agents in random order, drawing the same permutation as Collections.shuffle()
+		final int[] order = new int[n];
+		for (int i=0; i<n; i++)
+			order[i] = i;
+		final Random rnd = getRandom();
+		for (int i=n; i>1; i--) {
+			int j = rnd.nextInt(i);
+			int t = order[i-1];
+			order[i-1] = order[j];
+			order[j] = t;
+		}
+		
+		double sum = 0;
+		for (int k=0; k<n; k++) {
+			int i = order[k];
 			T agent = list.get(i);
 			
 			// update cumulated probability
-			sum += closure.getProbability(agent);
+			sum += probabilities[i];
 			
 			// set individual probability to 1 if there is a change of the integer part of the cumulated probability, 0 otherwise
 			if (sum == Math.rint(sum)) 
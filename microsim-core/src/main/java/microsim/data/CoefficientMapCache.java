@@ -0,0 +1,229 @@
+package microsim.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Adler32;
+
+import org.apache.commons.collections.MapIterator;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.apache.commons.collections.map.LinkedMap;
+import org.apache.log4j.Logger;
+
+/**
+ * Binary cache of MultiKeyCoefficientMaps loaded from Excel sheets or database tables. 
+ * 
+ * The cache of a map is a hidden file next to its source, named after the source file, the name of 
+ * the map within the source (e.g. the sheet) and the checksum of the source, so it is ignored as soon 
+ * as the source changes. Large sources, such as databases, can be identified by a cheaper fingerprint
+ * instead of their checksum. Reading memory-maps the file and rebuilds the map with the same keys, values 
+ * and iteration order as the map that was written.
+ * 
+ * Keys and values can be Strings, Integers, Longs, Doubles, Floats, Booleans or null; 
+ * maps holding other types are not cached.
+ */
+public class CoefficientMapCache {
+
+	private static Logger log = Logger.getLogger(CoefficientMapCache.class);
+	
+	/** The flag determines if ExcelAssistant and DatabaseUtils cache the coefficient maps they load. */
+	public static boolean enabled = false;
+	
+	private static final int MAGIC = 0x4a41534b;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".coef";
+	
+	private static final byte NULL = 0, STRING = 1, INTEGER = 2, LONG = 3, DOUBLE = 4, FLOAT = 5, BOOLEAN = 6, VECTOR = 7;
+	
+	/** The checksum of the content and length of a file. */
+	public static long checksum(File file) throws IOException {
+		final Adler32 checksum = new Adler32();
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[1 << 20];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				checksum.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return checksum.getValue() ^ (file.length() << 32);
+	}
+	
+	/** A fingerprint of a file from its length and modification time, which does not read the file. */
+	public static long fingerprint(File file) {
+		return (file.length() << 32) ^ file.lastModified();
+	}
+	
+	private static String getPrefix(File source, String name) {
+		return "." + source.getName() + "." + name.replaceAll("[^A-Za-z0-9_\\-]", "_") + ".";
+	}
+	
+	/** The cache file of the map called <code>name</code> in the current version of the source file. */
+	public static File getCacheFile(File source, String name) throws IOException {
+		return getCacheFile(source, name, checksum(source));
+	}
+	
+	/** The cache file of the map called <code>name</code> in the version of the source file identified by <code>version</code>, e.g. its fingerprint. */
+	public static File getCacheFile(File source, String name, long version) {
+		return new File(source.getAbsoluteFile().getParentFile(), getPrefix(source, name) + Long.toHexString(version) + SUFFIX);
+	}
+	
+	/**
+	 * @return the map stored in the cache file, or null if the file does not exist or cannot be read.
+	 */
+	public static MultiKeyCoefficientMap read(File cacheFile) {
+		if (! cacheFile.exists())
+			return null;
+		
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+			try {
+				final MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (in.getInt() != MAGIC || in.getInt() != VERSION)
+					return null;
+				
+				final String[] keys = new String[in.getInt()];
+				for (int i = 0; i < keys.length; i++)
+					keys[i] = (String) readObject(in);
+				final int valueCount = in.getInt();
+				String[] values = null;
+				if (valueCount >= 0) {
+					values = new String[valueCount];
+					for (int i = 0; i < valueCount; i++)
+						values[i] = (String) readObject(in);
+				}
+				
+				final int size = in.getInt();
+				final MultiKeyCoefficientMap map = new MultiKeyCoefficientMap(new LinkedMap(Math.max(size * 4 / 3 + 1, 16)), keys, values);
+				for (int row = 0; row < size; row++) {
+					final Object[] multiKey = new Object[keys.length];
+					for (int i = 0; i < keys.length; i++)
+						multiKey[i] = readObject(in);
+					map.put(new MultiKey(multiKey, false), readObject(in));
+				}
+				return map;
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			log.warn("Cannot read coefficient cache " + cacheFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Store the map into the cache file and delete the caches of older versions of the same source. 
+	 * Failures are logged and leave no cache behind.
+	 */
+	public static void write(MultiKeyCoefficientMap map, File cacheFile) {
+		final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(map.keys.length);
+				for (String key : map.keys)
+					writeObject(out, key);
+				if (map.valuesMap == null)
+					out.writeInt(-1);
+				else {
+					final String[] values = map.getValuesNames();
+					out.writeInt(values.length);
+					for (String value : values)
+						writeObject(out, value);
+				}
+				
+				out.writeInt(map.size());
+				for (MapIterator iterator = map.mapIterator(); iterator.hasNext();) {
+					final MultiKey multiKey = (MultiKey) iterator.next();
+					for (Object key : multiKey.getKeys())
+						writeObject(out, key);
+					writeObject(out, iterator.getValue());
+				}
+			} finally {
+				out.close();
+			}
+			
+			final String prefix = cacheFile.getName().substring(0, cacheFile.getName().lastIndexOf('.', cacheFile.getName().length() - SUFFIX.length() - 1) + 1);
+			final File[] stale = cacheFile.getParentFile().listFiles();
+			if (stale != null)
+				for (File file : stale)
+					if (file.getName().startsWith(prefix) && file.getName().endsWith(SUFFIX) && ! file.equals(cacheFile))
+						file.delete();
+			
+			cacheFile.delete();
+			if (! tmpFile.renameTo(cacheFile))
+				throw new IOException("cannot rename " + tmpFile);
+		} catch (Exception e) {
+			log.warn("Cannot write coefficient cache " + cacheFile + ": " + e.getMessage());
+			tmpFile.delete();
+		}
+	}
+	
+	private static void writeObject(DataOutputStream out, Object value) throws IOException {
+		if (value == null)
+			out.writeByte(NULL);
+		else if (value instanceof String) {
+			final String s = (String) value;
+			out.writeByte(STRING);
+			out.writeInt(s.length());
+			out.writeChars(s);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Object[]) {
+			final Object[] vector = (Object[]) value;
+			out.writeByte(VECTOR);
+			out.writeInt(vector.length);
+			for (Object element : vector)
+				writeObject(out, element);
+		} else
+			throw new IllegalArgumentException("values of type " + value.getClass().getName() + " cannot be cached");
+	}
+	
+	private static Object readObject(MappedByteBuffer in) throws IOException {
+		final byte type = in.get();
+		switch (type) {
+			case NULL: return null;
+			case STRING:
+				final char[] chars = new char[in.getInt()];
+				in.asCharBuffer().get(chars);
+				in.position(in.position() + 2 * chars.length);
+				return new String(chars);
+			case INTEGER: return in.getInt();
+			case LONG: return in.getLong();
+			case DOUBLE: return in.getDouble();
+			case FLOAT: return in.getFloat();
+			case BOOLEAN: return in.get() != 0;
+			case VECTOR:
+				final Object[] vector = new Object[in.getInt()];
+				for (int i = 0; i < vector.length; i++)
+					vector[i] = readObject(in);
+				return vector;
+			default:
+				throw new IOException("Unknown type " + type);
+		}
+	}
+	
+}
@@ -0,0 +1,231 @@
+package microsim.data;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.collections.MapIterator;
+import org.apache.commons.collections.keyvalue.MultiKey;
+
+/**
+ * Immutable, primitive-backed copy of a MultiKeyCoefficientMap, built by {@link MultiKeyCoefficientMap#compile()}.
+ * 
+ * The distinct values of each key column are interned into a dictionary and replaced by int codes, 
+ * rows are found by an open-addressing hash over the tuple of codes, and value columns are stored 
+ * as double arrays. Once the key codes are known (see {@link #getKeyCode(int, Object)}), lookups 
+ * do not allocate nor box. There is no limit on the number of keys.
+ * 
+ * Rows keep the iteration order of the source map. Values that are not numbers are stored as NaN, 
+ * booleans as 1 or 0.
+ */
+public class CompiledCoefficientTable {
+
+	private final String[] keys;
+	private final String[] values;
+	private final Map<String, Integer> valueColumns;
+	
+	private final Map<Object, Integer>[] dictionaries;
+	private final Object[][] keyValues;
+	
+	private final int rows;
+	private final int[] rowKeys;
+	private final double[][] columns;
+	
+	private final int[] slots;
+	private final int mask;
+	
+	/** The arrays returned by getKeyEnums, by (enum type, key column); each is fully built before it is published. */
+	private final ConcurrentMap<MultiKey, Object[]> enumCache = new ConcurrentHashMap<MultiKey, Object[]>();
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	CompiledCoefficientTable(MultiKeyCoefficientMap map) {
+		keys = map.getKeysNames();
+		values = map.valuesMap == null ? new String[1] : map.getValuesNames();		// a map without value names holds a single value per key
+		valueColumns = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < values.length; i++)
+			valueColumns.put(values[i], i);
+		
+		final int arity = keys.length;
+		rows = map.size();
+		rowKeys = new int[rows * arity];
+		columns = new double[values.length][rows];
+		dictionaries = new Map[arity];
+		for (int k = 0; k < arity; k++)
+			dictionaries[k] = new HashMap<Object, Integer>();
+		
+		int row = 0;
+		for (MapIterator iterator = map.mapIterator(); iterator.hasNext(); row++) {
+			final MultiKey multiKey = (MultiKey) iterator.next();
+			if (multiKey.size() != arity)
+				throw new IllegalArgumentException("Key " + multiKey + " does not have " + arity + " elements");
+			for (int k = 0; k < arity; k++) {
+				final Object key = multiKey.getKey(k);
+				Integer code = dictionaries[k].get(key);
+				if (code == null) {
+					code = dictionaries[k].size();
+					dictionaries[k].put(key, code);
+				}
+				rowKeys[row * arity + k] = code;
+			}
+			
+			final Object value = iterator.getValue();
+			if (value instanceof Object[]) {
+				final Object[] vector = (Object[]) value;
+				for (int v = 0; v < values.length; v++)
+					columns[v][row] = toDouble(v < vector.length ? vector[v] : null);
+			} else if (values.length > 0)
+				columns[0][row] = toDouble(value);
+		}
+		
+		keyValues = new Object[arity][];
+		for (int k = 0; k < arity; k++) {
+			keyValues[k] = new Object[dictionaries[k].size()];
+			for (Map.Entry<Object, Integer> entry : dictionaries[k].entrySet())
+				keyValues[k][entry.getValue()] = entry.getKey();
+		}
+		
+		int capacity = 2;
+		while (capacity < rows * 2)
+			capacity <<= 1;
+		slots = new int[capacity];
+		mask = capacity - 1;
+		for (row = 0; row < rows; row++) {
+			int slot = hash(rowKeys, row * arity, arity) & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = row + 1;
+		}
+	}
+	
+	private static double toDouble(Object value) {
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		if (value instanceof Boolean)
+			return ((Boolean) value) ? 1. : 0.;
+		return Double.NaN;
+	}
+	
+	private static int hash(int[] codes, int offset, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++)
+			h = h * 31 + codes[offset + i];
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	public int getArity() {
+		return keys.length;
+	}
+	
+	/** The number of rows (distinct key tuples) of the table. */
+	public int size() {
+		return rows;
+	}
+	
+	public String[] getKeysNames() {
+		return keys.clone();
+	}
+	
+	public String[] getValuesNames() {
+		return values.clone();
+	}
+	
+	/** @return the index of the value column, or -1 if the table has no such column. */
+	public int getValueColumn(String name) {
+		final Integer column = valueColumns.get(name);
+		return column == null ? -1 : column;
+	}
+	
+	/** @return the code of the value in the dictionary of the key column, or -1 if it never appears in that column. */
+	public int getKeyCode(int keyColumn, Object value) {
+		final Integer code = dictionaries[keyColumn].get(value);
+		return code == null ? -1 : code;
+	}
+	
+	public Object getKeyValue(int keyColumn, int code) {
+		return keyValues[keyColumn][code];
+	}
+	
+	/** The number of distinct values of the key column. */
+	public int getDictionarySize(int keyColumn) {
+		return keyValues[keyColumn].length;
+	}
+	
+	/**
+	 * Map the dictionary of a key column to the constants of an enum with the same names. 
+	 * The returned array is indexed by key code and is shared, so it must not be modified. 
+	 * 
+	 * @throws IllegalArgumentException if a value of the column is not the name of a constant of enumType.
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends Enum<E>> E[] getKeyEnums(int keyColumn, Class<E> enumType) {
+		final MultiKey cacheKey = new MultiKey(enumType, keyColumn);
+		final Object[] cached = enumCache.get(cacheKey);
+		if (cached != null)
+			return (E[]) cached;
+		
+		final E[] constants = (E[]) Array.newInstance(enumType, keyValues[keyColumn].length);
+		for (int code = 0; code < constants.length; code++)
+			constants[code] = Enum.valueOf(enumType, keyValues[keyColumn][code].toString());
+		
+		// Threads that race to build the same array all return the one that was published first
+		final Object[] published = enumCache.putIfAbsent(cacheKey, constants);
+		return (E[]) (published != null ? published : constants);
+	}
+	
+	/**
+	 * Translate a key tuple into codes.
+	 * 
+	 * @return false if an element of the key never appears in its column, in which case the tuple is not in the table.
+	 */
+	public boolean encodeKey(Object[] key, int[] keyCodes) {
+		for (int k = 0; k < keys.length; k++) {
+			keyCodes[k] = getKeyCode(k, key[k]);
+			if (keyCodes[k] < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/** @return the row with the given key codes, or -1 if there is none. */
+	public int getRow(int... keyCodes) {
+		final int arity = keys.length;
+		if (keyCodes.length != arity)
+			throw new IllegalArgumentException("Wrong number of key parameters");
+		int slot = hash(keyCodes, 0, arity) & mask;
+		int row;
+		while ((row = slots[slot]) != 0) {
+			final int offset = (row - 1) * arity;
+			int k = 0;
+			while (k < arity && rowKeys[offset + k] == keyCodes[k])
+				k++;
+			if (k == arity)
+				return row - 1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	public int getRowKeyCode(int row, int keyColumn) {
+		return rowKeys[row * keys.length + keyColumn];
+	}
+	
+	public double getRowValue(int row, int valueColumn) {
+		return columns[valueColumn][row];
+	}
+	
+	/** @return the value of the first value column for the key codes, or NaN if the table has no such row. */
+	public double getDouble(int... keyCodes) {
+		return getDouble(keyCodes, 0);
+	}
+	
+	/** @return the value of the given value column for the key codes, or NaN if the table has no such row. */
+	public double getDouble(int[] keyCodes, int valueColumn) {
+		final int row = getRow(keyCodes);
+		return row < 0 ? Double.NaN : columns[valueColumn][row];
+	}
+	
+}
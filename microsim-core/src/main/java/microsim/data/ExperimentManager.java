@@ -3,8 +3,17 @@ package microsim.data;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 import microsim.data.db.DatabaseUtils;
 import microsim.data.db.Experiment;
@@ -29,6 +38,26 @@ public class ExperimentManager {
 	/**	The flag determines if output database must automatically be created. */
 	public boolean saveExperimentOnDatabase = true;
 	
+	/** The flag determines if input and output database connections are initialised in parallel, in background. */
+	public boolean initDatabasesInParallel = false;
+	
+	/** 
+	 * The folder of the content-addressed cache of input files. When set, input files are hashed and stored 
+	 * once in this folder, as read-only files, and hard-linked into the output folder of each run instead of 
+	 * being copied. Files are copied when hard links are not supported. Database files are always copied, 
+	 * since the database of each run writes into them. 
+	 */
+	public String inputCacheFolder = null;
+	
+	/** 
+	 * The flag determines if all runs read the input database from the input folder instead of their own copy. 
+	 * The shared database is then opened read-only, see {@link DatabaseUtils#inputReadOnly}. 
+	 */
+	public boolean shareInputDatabase = false;
+	
+	/** Content hashes of the input files already staged, keyed by path, size and modification time. */
+	private final Map<String, String> inputHashes = new HashMap<String, String>();
+	
 //	public String inputDatabaseName = "input.odb";
 
 	private static ExperimentManager manager = null;
@@ -83,9 +112,76 @@ public class ExperimentManager {
 	            destination.close();
 	        }
 	    }
-		
+	    
+	    // Keep the modification time, so that the input fingerprint of a copied database matches across runs
+	    destFile.setLastModified(sourceFile.lastModified());
 	}
 
+	/**
+	 * Put the file into the output folder as a hard link to its copy in the {@link #inputCacheFolder}, 
+	 * adding it to the cache if its content is not there yet. Falls back to {@link #copy(String, String)}
+	 * when the file system cannot link the two folders.
+	 */
+	public void stage(String fileName, String outFolder) throws Exception {
+		final File sourceFile = new File(fileName);
+		final File cacheDir = new File(inputCacheFolder);
+		if (! cacheDir.exists())
+			cacheDir.mkdirs();
+		
+		final File cachedFile = new File(cacheDir, hash(sourceFile));
+		if (! cachedFile.exists()) {
+			log.debug("Adding " + sourceFile.getName() + " to input cache as " + cachedFile.getName());
+			final File tmpFile = File.createTempFile(cachedFile.getName(), ".tmp", cacheDir);
+			Files.copy(sourceFile.toPath(), tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			tmpFile.setReadOnly();
+			if (! tmpFile.renameTo(cachedFile))		// another process cached it in the meantime
+				tmpFile.delete();
+		}
+		
+		final File outDir = new File(outFolder);
+		if (! outDir.exists())
+			outDir.mkdirs();
+		final File destFile = new File(outDir, sourceFile.getName());
+		Files.deleteIfExists(destFile.toPath());
+		try {
+			Files.createLink(destFile.toPath(), cachedFile.toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			log.debug("Cannot link " + cachedFile + ", copying it instead: " + e.getMessage());
+			copy(cachedFile.getPath(), outFolder);
+			new File(outDir, cachedFile.getName()).renameTo(destFile);
+		}
+	}
+	
+	/** @return true for the files of the input database (input.*) and any H2 database, lock or trace file. */
+	static boolean isDatabaseFile(String fileName) {
+		return fileName.startsWith("input.") || fileName.endsWith(".h2.db") || fileName.endsWith(".mv.db") 
+				|| fileName.endsWith(".lock.db") || fileName.endsWith(".trace.db");
+	}
+	
+	private String hash(File file) throws IOException, NoSuchAlgorithmException {
+		final String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+		synchronized (inputHashes) {
+			final String hash = inputHashes.get(key);
+			if (hash != null)
+				return hash;
+		}
+		
+		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[1 << 20];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		final String hash = new BigInteger(1, digest.digest()).toString(16);
+		synchronized (inputHashes) {
+			inputHashes.put(key, hash);
+		}
+		return hash;
+	}
 	
 //	public static void expandODB(String odbFileName, String destinationFolder) {
 //
@@ -156,8 +252,16 @@ public class ExperimentManager {
 				for (String file : files) {
 //					if (! file.equals("input.odb") && ! file.startsWith("."))
 					if (! file.startsWith(".")) {
-						log.debug("Copying " + file + " to output folder");
-						copy(inputDir + File.separator + file, outFolder);
+						if (shareInputDatabase && isDatabaseFile(file)) 
+							continue;
+						
+						if (inputCacheFolder != null && new File(inputDir, file).isFile() && ! isDatabaseFile(file)) {
+							log.debug("Linking " + file + " into output folder");
+							stage(inputDir + File.separator + file, outFolder);
+						} else {
+							log.debug("Copying " + file + " to output folder");
+							copy(inputDir + File.separator + file, outFolder);
+						}
 					}
 				}
 			}
@@ -166,16 +270,24 @@ public class ExperimentManager {
 			 DatabaseUtils.databaseInputUrl = experiment.inputFolder + File.separator + "input";
 		}
 		
+		// The shared input database is not copied, whether or not the experiment is saved; read-only mode must not outlive the experiment
+		DatabaseUtils.inputReadOnly = shareInputDatabase;
+		if (shareInputDatabase)
+			DatabaseUtils.databaseInputUrl = experiment.inputFolder + File.separator + "input";
+		
 		if (saveExperimentOnDatabase) {
 			log.debug("Creating experiment on output database");
 			File dbFile = new File(experiment.getOutputFolder() + File.separator + "database");
 			if (! dbFile.exists())
 				dbFile.mkdir();
 			
-			if(copyInputFolderStructure) {
+			if(copyInputFolderStructure && ! shareInputDatabase) {
 				DatabaseUtils.databaseInputUrl = outFolder + File.separator + "input";
 			}
 			DatabaseUtils.databaseOutputUrl = experiment.getOutputFolder() + File.separator + "database" + File.separator + "out";
+			
+			if (initDatabasesInParallel)
+				DatabaseUtils.initEntityManagerFactories();
 				
 			experiment = DatabaseUtils.createExperiment(DatabaseUtils.getOutEntityManger(), experiment, models);
 			log.debug("Created experiment with id " + experiment.id);
@@ -3,6 +3,7 @@ package microsim.data;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.apache.commons.collections.MapIterator;
 import org.apache.commons.collections.keyvalue.MultiKey;
 import org.apache.commons.collections.map.AbstractHashedMap;
 import org.apache.commons.collections.map.AbstractLinkedMap;
@@ -16,6 +17,9 @@ public class MultiKeyCoefficientMap extends MultiKeyMap {
 	protected String[] keys;
 	protected Map<String, Integer> valuesMap;
 	
+	/** Number of changes made to the map, see {@link #getModificationCount()}. */
+	private transient volatile int modificationCount = 0;
+	
 	public MultiKeyCoefficientMap(String[] keys, String[] values) {
 		super();
 		MultiKeyCoefficientMap.decorate(new LinkedMap());
@@ -133,6 +137,7 @@ public class MultiKeyCoefficientMap extends MultiKeyMap {
 	}
 
 	public void putValue(Object ... keyValues) {		
+		modificationCount++;
 		if (keyValues.length == keys.length + 1) {
 			switch (keyValues.length) {
 				case 1:
@@ -238,4 +243,147 @@ public class MultiKeyCoefficientMap extends MultiKeyMap {
 		return valuesClone;
 	}
 	
+	/**
+	 * The number of changes made to the map through its put, putValue, remove and clear methods and its 
+	 * map iterator, so that structures compiled from the map (e.g. the scoring plans of the regressions) 
+	 * can tell that they are stale. Changes made through the keySet, values and entrySet views, or to 
+	 * the value arrays in place, are not counted.
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
+	
+	@Override
+	public Object put(Object key1, Object key2, Object value) {
+		modificationCount++;
+		return super.put(key1, key2, value);
+	}
+
+	@Override
+	public Object put(Object key1, Object key2, Object key3, Object value) {
+		modificationCount++;
+		return super.put(key1, key2, key3, value);
+	}
+
+	@Override
+	public Object put(Object key1, Object key2, Object key3, Object key4, Object value) {
+		modificationCount++;
+		return super.put(key1, key2, key3, key4, value);
+	}
+
+	@Override
+	public Object put(Object key1, Object key2, Object key3, Object key4, Object key5, Object value) {
+		modificationCount++;
+		return super.put(key1, key2, key3, key4, key5, value);
+	}
+
+	@Override
+	public Object put(Object key, Object value) {
+		modificationCount++;
+		return super.put(key, value);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void putAll(Map mapToCopy) {
+		modificationCount++;
+		super.putAll(mapToCopy);
+	}
+
+	@Override
+	public Object remove(Object key1, Object key2) {
+		modificationCount++;
+		return super.remove(key1, key2);
+	}
+
+	@Override
+	public Object remove(Object key1, Object key2, Object key3) {
+		modificationCount++;
+		return super.remove(key1, key2, key3);
+	}
+
+	@Override
+	public Object remove(Object key1, Object key2, Object key3, Object key4) {
+		modificationCount++;
+		return super.remove(key1, key2, key3, key4);
+	}
+
+	@Override
+	public Object remove(Object key1, Object key2, Object key3, Object key4, Object key5) {
+		modificationCount++;
+		return super.remove(key1, key2, key3, key4, key5);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		modificationCount++;
+		return super.remove(key);
+	}
+
+	@Override
+	public boolean removeAll(Object key1) {
+		modificationCount++;
+		return super.removeAll(key1);
+	}
+
+	@Override
+	public boolean removeAll(Object key1, Object key2) {
+		modificationCount++;
+		return super.removeAll(key1, key2);
+	}
+
+	@Override
+	public boolean removeAll(Object key1, Object key2, Object key3) {
+		modificationCount++;
+		return super.removeAll(key1, key2, key3);
+	}
+
+	@Override
+	public boolean removeAll(Object key1, Object key2, Object key3, Object key4) {
+		modificationCount++;
+		return super.removeAll(key1, key2, key3, key4);
+	}
+
+	@Override
+	public void clear() {
+		modificationCount++;
+		super.clear();
+	}
+
+	/** The map iterator of the map, whose setValue and remove methods count as changes of the map. */
+	@Override
+	public MapIterator mapIterator() {
+		final MapIterator iterator = super.mapIterator();
+		return new MapIterator() {
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
+			public Object next() {
+				return iterator.next();
+			}
+			public Object getKey() {
+				return iterator.getKey();
+			}
+			public Object getValue() {
+				return iterator.getValue();
+			}
+			public void remove() {
+				modificationCount++;
+				iterator.remove();
+			}
+			public Object setValue(Object value) {
+				modificationCount++;
+				return iterator.setValue(value);
+			}
+		};
+	}
+	
+	/**
+	 * Build an immutable, primitive-backed copy of the map for fast lookups. 
+	 * Later changes to this map are not reflected in the returned table.
+	 */
+	public CompiledCoefficientTable compile() {
+		return new CompiledCoefficientTable(this);
+	}
+	
 }
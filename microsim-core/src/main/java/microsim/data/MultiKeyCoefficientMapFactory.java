@@ -1,62 +1,128 @@
 package microsim.data;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import microsim.annotation.CoefficientMapping;
 
+import org.apache.commons.collections.keyvalue.MultiKey;
+
 public class MultiKeyCoefficientMapFactory {
 
+	/** Mapper plans of the CoefficientMapping annotated classes, resolved once per class. */
+	private static final Map<Class<?>, MapperPlan> plans = new ConcurrentHashMap<Class<?>, MapperPlan>();
+	
 	public static MultiKeyCoefficientMap createMapFromAnnotatedList(List<?> list) throws IllegalArgumentException, SecurityException, IllegalAccessException, NoSuchFieldException {
-		
+
 		if (list == null || list.size() == 0)
 			throw new IllegalArgumentException("List must be not null and must contain at least one element");
 
-		Class<?> clazz = list.get(0).getClass();
+		MultiKeyCoefficientMap map = createMapFromAnnotatedClass(list.get(0).getClass());
+
+		MapperPlan plan = null;
+		for (Object object : list) {
+			if (plan == null || plan.clazz != object.getClass())
+				plan = getPlan(object.getClass());
+			plan.put(map, object);
+		}
+
+		return map;
+	}
+
+	/**
+	 * Create an empty map with the keys and values declared by the CoefficientMapping annotation of the class.
+	 * Rows can then be added one at a time with {@link #putAnnotatedObject(MultiKeyCoefficientMap, Object)}.
+	 */
+	public static MultiKeyCoefficientMap createMapFromAnnotatedClass(Class<?> clazz) {
 		if (! clazz.isAnnotationPresent(CoefficientMapping.class))
 			throw new IllegalArgumentException("List must contain CoefficientMap annotated objects");
-		
+
 		CoefficientMapping anno = clazz.getAnnotation(CoefficientMapping.class);
+
+		return new MultiKeyCoefficientMap(anno.keys(), anno.values());
+	}
+
+	public static void putAnnotatedObject(MultiKeyCoefficientMap map, Object object) throws IllegalArgumentException, SecurityException, IllegalAccessException, NoSuchFieldException {
+		getPlan(object.getClass()).put(map, object);
+	}
+	
+	private static MapperPlan getPlan(Class<?> clazz) throws IllegalAccessException, NoSuchFieldException {
+		MapperPlan plan = plans.get(clazz);
+		if (plan == null) {
+			plan = new MapperPlan(clazz);
+			plans.put(clazz, plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * The getters of the key and value fields of an annotated class. Each row is stored 
+	 * as a single entry, whose value is the vector of all the value fields.
+	 */
+	private static class MapperPlan {
 		
-		String[] keys = anno.keys();
-		String[] values = anno.values();
+		private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
 		
-		MultiKeyCoefficientMap map = new MultiKeyCoefficientMap(keys, values);
+		private final Class<?> clazz;
+		private final MethodHandle[] keyGetters;
+		private final MethodHandle[] valueGetters;
 		
-		for (Field field  : clazz.getDeclaredFields()) {
-			field.setAccessible(true);
+		MapperPlan(Class<?> clazz) throws IllegalAccessException, NoSuchFieldException {
+			if (! clazz.isAnnotationPresent(CoefficientMapping.class))
+				throw new IllegalArgumentException("List must contain CoefficientMap annotated objects");
+			
+			this.clazz = clazz;
+			final CoefficientMapping anno = clazz.getAnnotation(CoefficientMapping.class);
+			keyGetters = getters(clazz, anno.keys());
+			valueGetters = getters(clazz, anno.values());
 		}
+		
+		private static MethodHandle[] getters(Class<?> clazz, String[] fieldNames) throws IllegalAccessException, NoSuchFieldException {
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			final MethodHandle[] getters = new MethodHandle[fieldNames.length];
+			for (int i = 0; i < fieldNames.length; i++) {
+				final Field field = getField(clazz, fieldNames[i]);
+				field.setAccessible(true);
+				getters[i] = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+			}
+			return getters;
+		}
+		
+		private static Field getField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
+			for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+				try {
+					return c.getDeclaredField(fieldName);
+				} catch (NoSuchFieldException e) {
+					// look into the superclass
+				}
+			}
+			throw new NoSuchFieldException(fieldName);
+		}
+		
+		void put(MultiKeyCoefficientMap map, Object object) {
+			try {
+				final Object[] keys = new Object[keyGetters.length];
+				for (int i = 0; i < keys.length; i++)
+					keys[i] = (Object) keyGetters[i].invokeExact(object);
+				final Object[] values = new Object[valueGetters.length];
+				for (int i = 0; i < values.length; i++)
+					values[i] = (Object) valueGetters[i].invokeExact(object);
 				
-		for (Object object : list) {			
-			for (String value : values) {
-				switch (keys.length) {
-					case 1:
-						map.putValue(getValue(clazz, keys[0], object), value, getValue(clazz, value, object));
-						break;
-					case 2:
-						map.putValue(getValue(clazz, keys[0], object), getValue(clazz, keys[1], object), value, getValue(clazz, value, object));
-						break;
-					case 3:
-						map.putValue(getValue(clazz, keys[0], object), getValue(clazz, keys[1], object), getValue(clazz, keys[2], object), value, getValue(clazz, value, object));
-						break;
-					case 4:
-						map.putValue(getValue(clazz, keys[0], object), getValue(clazz, keys[1], object), getValue(clazz, keys[2], object), getValue(clazz, keys[3], object), value, getValue(clazz, value, object));
-						break;
-					case 5:
-						map.putValue(getValue(clazz, keys[0], object), getValue(clazz, keys[1], object), getValue(clazz, keys[2], object), getValue(clazz, keys[3], object), getValue(clazz, keys[4], object), value, getValue(clazz, value, object));
-						break;
-					default:
-						throw new IllegalArgumentException("Unsupported number of keys");
-				}				
+				map.put(new MultiKey(keys, false), values);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalArgumentException(e);
 			}
 		}
 		
-		return map;		
 	}
 	
-	private static Object getValue(Class<?> clazz, String fieldName, Object object) throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
-		final Field field = clazz.getDeclaredField(fieldName);
-		field.setAccessible(true);
-		return field.get(object);
-	}
 }
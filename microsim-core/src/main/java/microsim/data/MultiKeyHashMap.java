@@ -1,10 +1,19 @@
 package microsim.data;
 
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
-public class MultiKeyHashMap extends LinkedHashMap<Integer, MultiKeyHashMap.EntryValue> {
-
-	private static final long serialVersionUID = 4939180438185813582L;
+/**
+ * Hash map whose keys are tuples of objects, all with the same number of elements.
+ * 
+ * Entries are stored in an open-addressing table: key tuples are kept inline in a flat array and 
+ * compared element by element, so permuted tuples such as (A,B) and (B,A), or tuples whose hash 
+ * codes collide, are distinct keys. Integer, Long and enum key elements can be looked up with 
+ * {@link #get(int[])} and {@link #get(long[])} without boxing. Enums are hashed by ordinal, so the 
+ * layout of the table does not depend on identity hash codes. Iteration follows insertion order.
+ */
+public class MultiKeyHashMap implements Iterable<MultiKeyHashMap.EntryValue> {
 
 	public class EntryValue {
 		
@@ -35,30 +44,306 @@ public class MultiKeyHashMap extends LinkedHashMap<Integer, MultiKeyHashMap.Entr
 
 	}
 	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private int arity;
+	
+	/** Hash table of entry indices + 1, 0 for empty slots. */
+	private int[] slots = new int[INITIAL_CAPACITY * 2];
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	/** Key tuples of the entries, in insertion order, arity elements each. */
+	private Object[] keys = null;
+	private Object[][] values = new Object[INITIAL_CAPACITY][];
+	private boolean[] removed = new boolean[INITIAL_CAPACITY];
+	
+	/** Number of entries used, including removed ones. */
+	private int used = 0;
+	private int size = 0;
+	
+	/** Create a map whose number of keys is fixed by the first put. */
+	public MultiKeyHashMap() {
+		this.arity = -1;
+	}
+	
+	public MultiKeyHashMap(int arity) {
+		if (arity < 1)
+			throw new IllegalArgumentException("Keys must have at least one element");
+		this.arity = arity;
+		this.keys = new Object[INITIAL_CAPACITY * arity];
+	}
+	
+	private static int elementHash(Object key) {
+		if (key == null)
+			return 0;
+		if (key instanceof Enum)
+			return ((Enum<?>) key).ordinal();
+		return key.hashCode();
+	}
+	
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/** The hash of the whole key tuple, which depends on the order of its elements. */
 	public int getHashKey(Object[] keyArray) {
 		int hashValue = 0;
 		
 		for (int i = 0; i < keyArray.length; i++) {
-			hashValue += keyArray[i].hashCode();
+			hashValue = hashValue * 31 + elementHash(keyArray[i]);
 		}
 
-		return hashValue;
+		return mix(hashValue);
+	}
+	
+	private int getHashKey(int[] keyArray) {
+		int hashValue = 0;
+		for (int i = 0; i < keyArray.length; i++)
+			hashValue = hashValue * 31 + keyArray[i];		// same as Integer.hashCode()
+		return mix(hashValue);
+	}
+	
+	private int getHashKey(long[] keyArray) {
+		int hashValue = 0;
+		for (int i = 0; i < keyArray.length; i++)
+			hashValue = hashValue * 31 + (int) (keyArray[i] ^ (keyArray[i] >>> 32));		// same as Long.hashCode()
+		return mix(hashValue);
+	}
+	
+	private void checkArity(int length) {
+		if (arity < 0) {
+			arity = length;
+			keys = new Object[hashes.length * arity];
+		} else if (length != arity)
+			throw new IllegalArgumentException("Wrong number of key parameters: " + length + " instead of " + arity);
+	}
+	
+	private boolean matches(int entry, Object[] keyArray) {
+		final int offset = entry * arity;
+		for (int i = 0; i < arity; i++) {
+			final Object a = keys[offset + i];
+			final Object b = keyArray[i];
+			if (a != b && (a == null || ! a.equals(b)))
+				return false;
+		}
+		return true;
+	}
+	
+	private int find(Object[] keyArray) {
+		if (arity < 0)
+			return -1;
+		checkArity(keyArray.length);
+		final int hash = getHashKey(keyArray);
+		final int mask = slots.length - 1;
+		int entry;
+		for (int slot = hash & mask; (entry = slots[slot]) != 0; slot = (slot + 1) & mask) {
+			entry--;
+			if (hashes[entry] == hash && matches(entry, keyArray))
+				return slot;
+		}
+		return -1;
 	}
 	
 	public boolean containsKey(Object ... keyArray) {		
-		return super.containsKey(getHashKey(keyArray));
+		return find(keyArray) >= 0;
 	}
 
+	public Object[] get(Object ... keyArray) {
+		final int slot = find(keyArray);
+		return slot < 0 ? null : values[slots[slot] - 1];
+	}
+	
+	/** Get the values of a key made of Integer (or enum, by ordinal) elements without boxing it. */
+	public Object[] get(int[] keyArray) {
+		if (arity < 0)
+			return null;
+		checkArity(keyArray.length);
+		final int hash = getHashKey(keyArray);
+		final int mask = slots.length - 1;
+		int entry;
+		for (int slot = hash & mask; (entry = slots[slot]) != 0; slot = (slot + 1) & mask) {
+			entry--;
+			if (hashes[entry] != hash)
+				continue;
+			final int offset = entry * arity;
+			int i = 0;
+			while (i < arity && intValue(keys[offset + i]) == keyArray[i] && intKey(keys[offset + i]))
+				i++;
+			if (i == arity)
+				return values[entry];
+		}
+		return null;
+	}
+	
+	/** Get the values of a key made of Long elements without boxing it. */
+	public Object[] get(long[] keyArray) {
+		if (arity < 0)
+			return null;
+		checkArity(keyArray.length);
+		final int hash = getHashKey(keyArray);
+		final int mask = slots.length - 1;
+		int entry;
+		for (int slot = hash & mask; (entry = slots[slot]) != 0; slot = (slot + 1) & mask) {
+			entry--;
+			if (hashes[entry] != hash)
+				continue;
+			final int offset = entry * arity;
+			int i = 0;
+			while (i < arity && keys[offset + i] instanceof Long && ((Long) keys[offset + i]).longValue() == keyArray[i])
+				i++;
+			if (i == arity)
+				return values[entry];
+		}
+		return null;
+	}
+	
+	private static boolean intKey(Object key) {
+		return key instanceof Integer || key instanceof Enum;
+	}
+	
+	private static int intValue(Object key) {
+		if (key instanceof Integer)
+			return (Integer) key;
+		if (key instanceof Enum)
+			return ((Enum<?>) key).ordinal();
+		return 0;
+	}
+
+	/** @return the values previously associated with the key, or null if there were none. */
 	public Object[] put(Object[] keyArray, Object[] valueArray) {
-		return super.put(getHashKey(keyArray), new EntryValue(keyArray, valueArray)).getValueArray();
+		checkArity(keyArray.length);
+		final int existing = find(keyArray);
+		if (existing >= 0) {
+			final int entry = slots[existing] - 1;
+			final Object[] previous = values[entry];
+			values[entry] = valueArray;
+			return previous;
+		}
+		
+		if (used == hashes.length)
+			grow();
+		final int entry = used++;
+		final int hash = getHashKey(keyArray);
+		System.arraycopy(keyArray, 0, keys, entry * arity, arity);
+		hashes[entry] = hash;
+		values[entry] = valueArray;
+		removed[entry] = false;
+		insertSlot(entry, hash);
+		size++;
+		return null;
 	}
 
+	/** @return the values associated with the removed key, or null if there were none. */
 	public Object[] remove(Object ... keyArray) {
-		return super.remove(getHashKey(keyArray)).getValueArray();
+		int slot = find(keyArray);
+		if (slot < 0)
+			return null;
+		
+		final int entry = slots[slot] - 1;
+		final Object[] previous = values[entry];
+		Arrays.fill(keys, entry * arity, (entry + 1) * arity, null);
+		values[entry] = null;
+		removed[entry] = true;
+		size--;
+		
+		// Backward shift deletion keeps probe sequences intact without tombstones
+		final int mask = slots.length - 1;
+		int next = (slot + 1) & mask;
+		while (slots[next] != 0) {
+			final int home = hashes[slots[next] - 1] & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				slots[slot] = slots[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		slots[slot] = 0;
+		return previous;
+	}
+	
+	private void insertSlot(int entry, int hash) {
+		final int mask = slots.length - 1;
+		int slot = hash & mask;
+		while (slots[slot] != 0)
+			slot = (slot + 1) & mask;
+		slots[slot] = entry + 1;
+	}
+	
+	/** Compact removed entries and double the capacity if the map is more than half full. */
+	private void grow() {
+		final int capacity = size * 2 > hashes.length ? hashes.length * 2 : hashes.length;
+		final Object[] newKeys = new Object[capacity * arity];
+		final Object[][] newValues = new Object[capacity][];
+		final int[] newHashes = new int[capacity];
+		int n = 0;
+		for (int entry = 0; entry < used; entry++) {
+			if (removed[entry])
+				continue;
+			System.arraycopy(keys, entry * arity, newKeys, n * arity, arity);
+			newValues[n] = values[entry];
+			newHashes[n] = hashes[entry];
+			n++;
+		}
+		keys = newKeys;
+		values = newValues;
+		hashes = newHashes;
+		removed = new boolean[capacity];
+		used = n;
+		slots = new int[capacity * 2];
+		for (int entry = 0; entry < used; entry++)
+			insertSlot(entry, hashes[entry]);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(slots, 0);
+		if (keys != null)
+			Arrays.fill(keys, null);
+		Arrays.fill(values, null);
+		used = 0;
+		size = 0;
 	}
 
-	public Object[] get(Object ... keyArray) {
-		return super.get(getHashKey(keyArray)).getValueArray();
+	/** Iterate over the entries in insertion order. The key arrays of the entries are copies. */
+	@Override
+	public Iterator<EntryValue> iterator() {
+		return new Iterator<EntryValue>() {
+			
+			private int next = advance(0);
+			
+			private int advance(int entry) {
+				while (entry < used && removed[entry])
+					entry++;
+				return entry;
+			}
+			
+			@Override
+			public boolean hasNext() {
+				return next < used;
+			}
+
+			@Override
+			public EntryValue next() {
+				if (next >= used)
+					throw new NoSuchElementException();
+				final EntryValue entryValue = new EntryValue(Arrays.copyOfRange(keys, next * arity, (next + 1) * arity), values[next]);
+				next = advance(next + 1);
+				return entryValue;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+			
+		};
 	}
 
 }
@@ -1,11 +1,25 @@
 package microsim.data.db;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -14,11 +28,20 @@ import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 
 import microsim.annotation.ModelParameter;
+import microsim.data.CoefficientMapCache;
 import microsim.data.MultiKeyCoefficientMap;
 import microsim.data.MultiKeyCoefficientMapFactory;
 import microsim.engine.SimulationEngine;
+import microsim.exception.SimulationRuntimeException;
 
+import org.apache.commons.collections.Closure;
+import org.apache.commons.collections.Transformer;
 import org.apache.log4j.Logger;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.Dialect;
 import org.hibernate.ejb.Ejb3Configuration;
 import org.hibernate.tool.hbm2ddl.SchemaExport;
 import org.hibernate.tool.hbm2ddl.SchemaUpdate;
@@ -30,13 +53,41 @@ public class DatabaseUtils {
 
 	private static EntityManagerFactory entityManagerFactory = null;
 	private static EntityManagerFactory outEntityManagerFactory = null;
+	
+	private static Future<EntityManagerFactory> entityManagerFactoryFuture = null;
+	private static Future<EntityManagerFactory> outEntityManagerFactoryFuture = null;
+	
+	private static final Object inputFactoryLock = new Object();
+	private static final Object outFactoryLock = new Object();
 
 	public static String databaseInputUrl = null;
 	
 	public static String databaseOutputUrl = null;
+	
+	/** 
+	 * When true, the input database is opened read-only (ACCESS_MODE_DATA=r for H2) and its schema is never updated, 
+	 * so that several runs can share the same database file. 
+	 */
+	public static boolean inputReadOnly = false;
 		
 	public static Long autoincrementSeed = 1000000L;
 	
+	/** 
+	 * When true, the schema update is skipped if the mapped schema has not changed since it was last applied to the database, 
+	 * and the database file has not been modified (or replaced) since. 
+	 */
+	public static boolean cacheSchemaValidation = false;
+	
+	/** Number of rows fetched per round trip, and loaded between two clears of the persistence context, by the streaming loaders. */
+	public static int fetchSize = 1000;
+
+	/** Folder of the binary population cache used by {@link #loadCachedTable(Class)}, null to disable the cache. */
+	public static File populationCacheFolder = null;
+	
+	/** The input url whose database file was fingerprinted, and its fingerprint. */
+	private static String inputFingerprintUrl = null;
+	private static long inputFingerprint;
+	
 	public static Experiment createExperiment(EntityManager entityManager, Experiment experiment, Object... models) throws IllegalArgumentException,
 			IllegalAccessException {
 	
@@ -219,43 +270,117 @@ public class DatabaseUtils {
 		if (SimulationEngine.getInstance().isSilentMode())
 			return null;
 		
-		if (entityManagerFactory == null) {
-			try {
-				// Create the EntityManagerFactory
-				Map<String, String> configOverrides = new LinkedHashMap<String, String>();
-				if (autoUpdate) 
-					configOverrides.put("hibernate.hbm2ddl.auto", "update");
-				configOverrides.put("hibernate.archive.autodetection", "class");
+		return getEntityManagerFactory(autoUpdate).createEntityManager();
+	}
 
-				Ejb3Configuration cfg = new Ejb3Configuration();
-				Ejb3Configuration configured = cfg.configure("sim-model",
-						configOverrides);
+	private static EntityManagerFactory getEntityManagerFactory(boolean autoUpdate) {
+		synchronized (inputFactoryLock) {
+			if (entityManagerFactory == null) {
+				try {
+					if (entityManagerFactoryFuture != null)
+						entityManagerFactory = entityManagerFactoryFuture.get();
+					else
+						entityManagerFactory = buildEntityManagerFactory(autoUpdate);
+				} catch (Throwable ex) {
+					if (ex instanceof ExecutionException)
+						ex = ex.getCause();
+					log.fatal("Initial EntityManagerFactory creation failed." + ex);
+					if (ex instanceof PersistenceException)
+						log.fatal(((PersistenceException) ex).getCause());
+					throw new ExceptionInInitializerError(ex);
+				} finally {
+					entityManagerFactoryFuture = null;
+				}
+			}
 
-				if (databaseInputUrl != null) {
-					String connectionUrl = configured.getProperties().getProperty("hibernate.connection.url");
-					//connectionUrl = connectionUrl.replaceFirst("\\[input-path\\]", databaseInputUrl);
-					connectionUrl = connectionUrl.replace("[input-path]", databaseInputUrl);
-					configured.getProperties().put("hibernate.connection.url", connectionUrl);
-				};
-				
-				// configured.buildMappings();
-				// configured.setListener("flush-entity", new
-				// OutputFlushEntityEventListener());
+			return entityManagerFactory;
+		}
+	}
 
-				// Mappings mappings =
-				// configured.getHibernateConfiguration().createMappings();
+	private static EntityManagerFactory buildEntityManagerFactory(boolean autoUpdate) throws NoSuchAlgorithmException, IOException {
+		// Fingerprint the input database file before the factory opens (and possibly writes) it
+		getInputFingerprint();
+		
+		// Create the EntityManagerFactory
+		Map<String, String> configOverrides = new LinkedHashMap<String, String>();
+		if (inputReadOnly)
+			autoUpdate = false;
+		if (autoUpdate) 
+			configOverrides.put("hibernate.hbm2ddl.auto", "update");
+		configOverrides.put("hibernate.archive.autodetection", "class");
+
+		Ejb3Configuration cfg = new Ejb3Configuration();
+		Ejb3Configuration configured = cfg.configure("sim-model",
+				configOverrides);
+
+		if (databaseInputUrl != null) {
+			String connectionUrl = configured.getProperties().getProperty("hibernate.connection.url");
+			//connectionUrl = connectionUrl.replaceFirst("\\[input-path\\]", databaseInputUrl);
+			connectionUrl = connectionUrl.replace("[input-path]", databaseInputUrl);
+			configured.getProperties().put("hibernate.connection.url", connectionUrl);
+		};
+		
+		if (inputReadOnly) {
+			configured.getProperties().remove("hibernate.hbm2ddl.auto");
+			final String connectionUrl = configured.getProperties().getProperty("hibernate.connection.url");
+			if (connectionUrl != null && connectionUrl.startsWith("jdbc:h2:") && connectionUrl.indexOf("ACCESS_MODE_DATA") < 0)
+				configured.getProperties().put("hibernate.connection.url", connectionUrl + ";ACCESS_MODE_DATA=r");
+		}
+		
+		final String fingerprint = (autoUpdate ? getSchemaFingerprint(configured) : null);
+		final boolean schemaUnchanged = isSchemaUnchanged(configured, fingerprint);
+		if (schemaUnchanged) 
+			configured.getProperties().remove("hibernate.hbm2ddl.auto");
+		
+		// configured.buildMappings();
+		// configured.setListener("flush-entity", new
+		// OutputFlushEntityEventListener());
 
-				entityManagerFactory = configured.buildEntityManagerFactory();
+		// Mappings mappings =
+		// configured.getHibernateConfiguration().createMappings();
 
-			} catch (Throwable ex) {
-				log.fatal("Initial EntityManagerFactory creation failed." + ex);
-				if (ex instanceof PersistenceException)
-					log.fatal(((PersistenceException) ex).getCause());
-				throw new ExceptionInInitializerError(ex);
+		final EntityManagerFactory factory = configured.buildEntityManagerFactory();
+		if (fingerprint != null && ! schemaUnchanged)
+			saveSchemaFingerprint(configured, fingerprint);
+		return factory;
+	}
+
+	/**
+	 * Start building the input and output EntityManagerFactory on background threads, so that 
+	 * the (slow) Hibernate configuration and schema checks of the two databases overlap with each 
+	 * other and with the model setup. The first call to getEntityManger() or getOutEntityManger() waits 
+	 * for the corresponding factory; any initialisation error is reported at that point, so a factory
+	 * that is never used does not need to be configured. Call it once the database urls are set.
+	 */
+	public static void initEntityManagerFactories() {
+		if (SimulationEngine.getInstance().isSilentMode())
+			return;
+		
+		getInputFingerprint();
+		final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "EntityManagerFactory initialiser");
+				thread.setDaemon(true);
+				return thread;
 			}
+		});
+		synchronized (inputFactoryLock) {
+			if (entityManagerFactory == null && entityManagerFactoryFuture == null)
+				entityManagerFactoryFuture = executor.submit(new Callable<EntityManagerFactory>() {
+					public EntityManagerFactory call() throws Exception {
+						return buildEntityManagerFactory(true);
+					}
+				});
 		}
-
-		return entityManagerFactory.createEntityManager();
+		synchronized (outFactoryLock) {
+			if (outEntityManagerFactory == null && outEntityManagerFactoryFuture == null)
+				outEntityManagerFactoryFuture = executor.submit(new Callable<EntityManagerFactory>() {
+					public EntityManagerFactory call() throws Exception {
+						return buildOutEntityManagerFactory("sim-model-out");
+					}
+				});
+		}
+		executor.shutdown();
 	}
 
 	public static void inputSchemaUpdateEntityManger() {
@@ -309,44 +434,156 @@ public class DatabaseUtils {
 		if (SimulationEngine.getInstance().isSilentMode())
 			return null;
 		
-		if (outEntityManagerFactory == null) {
-			try {
-				// Create the EntityManagerFactory
-				Map<String, String> configOverrides = new LinkedHashMap<String, String>();
-				configOverrides.put("hibernate.hbm2ddl.auto", "update");
-				configOverrides.put("hibernate.archive.autodetection", "class");
-				// configOverrides.put("hibernate.ejb.interceptor.session_scoped",
-				// "it.zero11.microsim.db.PanelTargetInterceptor");
-				
-				Ejb3Configuration configured = new Ejb3Configuration()
-						.configure(persistenceUnitName, configOverrides);
+		return getOutEntityManagerFactory(persistenceUnitName).createEntityManager();
+	}
 
-				if (databaseOutputUrl != null) {
-					String connectionUrl = configured.getProperties().getProperty("hibernate.connection.url");
-					//connectionUrl = connectionUrl.replaceFirst("\\[output-path\\]", databaseOutputUrl);
-					connectionUrl = connectionUrl.replace("[output-path]", databaseOutputUrl);
-					configured.getProperties().put("hibernate.connection.url", connectionUrl);
-				};
-				
-				configured.addAnnotatedClass(Experiment.class);
-				configured.addAnnotatedClass(ExperimentParameter.class);
+	private static EntityManagerFactory getOutEntityManagerFactory(String persistenceUnitName) {
+		synchronized (outFactoryLock) {
+			if (outEntityManagerFactory == null) {
+				try {
+					if (outEntityManagerFactoryFuture != null)
+						outEntityManagerFactory = outEntityManagerFactoryFuture.get();
+					else
+						outEntityManagerFactory = buildOutEntityManagerFactory(persistenceUnitName);
+				} catch (Throwable ex) {
+					if (ex instanceof ExecutionException)
+						ex = ex.getCause();
+					log.fatal("Initial EntityManagerFactory creation failed." + ex);
+					if (ex instanceof PersistenceException)
+						log.fatal(((PersistenceException) ex).getCause());
+					throw new ExceptionInInitializerError(ex);
+				} finally {
+					outEntityManagerFactoryFuture = null;
+				}
+			}
 
-				// run the schema update.
-				new SchemaUpdate(configured.getHibernateConfiguration())
-						.execute(true, true);
+			return outEntityManagerFactory;
+		}
+	}
 
-				outEntityManagerFactory = configured
-						.buildEntityManagerFactory();
+	private static EntityManagerFactory buildOutEntityManagerFactory(String persistenceUnitName) throws NoSuchAlgorithmException, IOException {
+		// Create the EntityManagerFactory
+		Map<String, String> configOverrides = new LinkedHashMap<String, String>();
+		configOverrides.put("hibernate.hbm2ddl.auto", "update");
+		configOverrides.put("hibernate.archive.autodetection", "class");
+		// configOverrides.put("hibernate.ejb.interceptor.session_scoped",
+		// "it.zero11.microsim.db.PanelTargetInterceptor");
+		
+		Ejb3Configuration configured = new Ejb3Configuration()
+				.configure(persistenceUnitName, configOverrides);
+
+		if (databaseOutputUrl != null) {
+			String connectionUrl = configured.getProperties().getProperty("hibernate.connection.url");
+			//connectionUrl = connectionUrl.replaceFirst("\\[output-path\\]", databaseOutputUrl);
+			connectionUrl = connectionUrl.replace("[output-path]", databaseOutputUrl);
+			configured.getProperties().put("hibernate.connection.url", connectionUrl);
+		};
+		
+		configured.addAnnotatedClass(Experiment.class);
+		configured.addAnnotatedClass(ExperimentParameter.class);
+
+		final String fingerprint = getSchemaFingerprint(configured);
+		final boolean schemaUnchanged = isSchemaUnchanged(configured, fingerprint);
+		if (! schemaUnchanged) {
+			// run the schema update.
+			new SchemaUpdate(configured.getHibernateConfiguration())
+					.execute(true, true);
+		}
+		// the schema is up to date at this point, so hibernate does not need to check it again
+		configured.getProperties().remove("hibernate.hbm2ddl.auto");
 
-			} catch (Throwable ex) {
-				log.fatal("Initial EntityManagerFactory creation failed." + ex);
-				if (ex instanceof PersistenceException)
-					log.fatal(((PersistenceException) ex).getCause());
-				throw new ExceptionInInitializerError(ex);
+		final EntityManagerFactory factory = configured.buildEntityManagerFactory();
+		if (fingerprint != null && ! schemaUnchanged)
+			saveSchemaFingerprint(configured, fingerprint);
+		return factory;
+	}
+
+	/**
+	 * When cacheSchemaValidation is set, compute a fingerprint of the mapped schema (a digest of the 
+	 * DDL Hibernate would generate). The fingerprint is stored in a file beside the database, so it is 
+	 * only available for H2 file databases.
+	 * 
+	 * @return The fingerprint, or null if the schema validation cannot be cached for this database.
+	 */
+	private static String getSchemaFingerprint(Ejb3Configuration configured) throws NoSuchAlgorithmException, IOException {
+		if (! cacheSchemaValidation || getH2DatabasePath(configured) == null)
+			return null;
+		
+		final Configuration configuration = configured.getHibernateConfiguration();
+		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		for (String statement : configuration.generateSchemaCreationScript(Dialect.getDialect(configuration.getProperties())))
+			digest.update(statement.getBytes("UTF-8"));
+		return new BigInteger(1, digest.digest()).toString(16);
+	}
+
+	/**
+	 * @return true if the database exists, its schema was last updated to the given fingerprint, and the database file
+	 * has the same length and modification time as just after that update (so it has not been replaced or restored since).
+	 */
+	private static boolean isSchemaUnchanged(Ejb3Configuration configured, String fingerprint) throws IOException {
+		if (fingerprint == null)
+			return false;
+		
+		final String path = getH2DatabasePath(configured);
+		final File fingerprintFile = new File(path + ".schema");
+		final String fileState = getDatabaseFileState(path);
+		if (! fingerprintFile.exists() || fileState == null)
+			return false;
+		
+		final BufferedReader reader = new BufferedReader(new FileReader(fingerprintFile));
+		try {
+			if (fingerprint.equals(reader.readLine()) && fileState.equals(reader.readLine())) {
+				log.debug("Schema of " + path + " unchanged, skipping schema update");
+				return true;
 			}
+			return false;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void saveSchemaFingerprint(Ejb3Configuration configured, String fingerprint) throws IOException {
+		final String path = getH2DatabasePath(configured);
+		final String fileState = getDatabaseFileState(path);
+		final File fingerprintFile = new File(path + ".schema");
+		if (fileState == null) {
+			fingerprintFile.delete();
+			return;
+		}
+		
+		final FileWriter writer = new FileWriter(fingerprintFile);
+		try {
+			writer.write(fingerprint + "\n" + fileState);
+		} finally {
+			writer.close();
 		}
+	}
 
-		return outEntityManagerFactory.createEntityManager();
+	/**
+	 * @return The length and modification time of the H2 database file (page store or MVStore), or null if it does not exist.
+	 */
+	private static String getDatabaseFileState(String path) {
+		File file = new File(path + ".h2.db");
+		if (! file.exists())
+			file = new File(path + ".mv.db");
+		if (! file.exists())
+			return null;
+		return file.length() + ":" + file.lastModified();
+	}
+
+	private static String getH2DatabasePath(Ejb3Configuration configured) {
+		final String connectionUrl = configured.getProperties().getProperty("hibernate.connection.url");
+		if (connectionUrl == null || ! connectionUrl.startsWith("jdbc:h2:"))
+			return null;
+		
+		String path = connectionUrl.substring("jdbc:h2:".length());
+		if (path.indexOf(';') >= 0)
+			path = path.substring(0, path.indexOf(';'));
+		if (path.startsWith("file:"))
+			path = path.substring("file:".length());
+		else if (path.matches("^[a-z]{3,}:.*"))		// mem:, tcp:, ssl:, zip:...
+			return null;
+		return path;
 	}
 
 	public static List<?> loadTable(Class<?> clazz) {
@@ -359,10 +596,221 @@ public class DatabaseUtils {
 		return query.getResultList();
 	}
 
+	/**
+	 * The fingerprint (length and modification time) of the H2 input database file, taken once per input url, 
+	 * before the input EntityManagerFactory opens the file, so that all the caches of a run use the same key. 
+	 * The file is not read. 
+	 * 
+	 * @return the fingerprint, or null if the input database is not a local H2 file.
+	 */
+	static synchronized Long getInputFingerprint() {
+		final File databaseFile = databaseInputUrl == null ? null : new File(databaseInputUrl + ".h2.db");
+		if (databaseFile == null || ! databaseFile.exists())
+			return null;
+		if (! databaseInputUrl.equals(inputFingerprintUrl)) {
+			inputFingerprint = CoefficientMapCache.fingerprint(databaseFile);
+			inputFingerprintUrl = databaseInputUrl;
+		}
+		return inputFingerprint;
+	}
+
+	/**
+	 * Load the table mapped by <code>clazz</code> through the {@link PopulationCache} stored in 
+	 * {@link #populationCacheFolder}, keyed by the fingerprint of the H2 input database file.
+	 * Falls back to {@link #loadTable(Class)} when the cache is disabled or the input database 
+	 * is not a local H2 file.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> List<T> loadCachedTable(Class<T> clazz) {
+		final Long fingerprint = getInputFingerprint();
+		if (populationCacheFolder == null || fingerprint == null)
+			return (List<T>) loadTable(clazz);
+		
+		try {
+			return PopulationCache.loadTable(getEntityManger(), clazz, fingerprint, populationCacheFolder);
+		} catch (IOException e) {
+			throw new SimulationRuntimeException("Cannot load " + clazz.getSimpleName() + " from population cache", e);
+		}
+	}
+
+	public static void loadTable(Class<?> clazz, Closure closure) {
+		loadTable(getEntityManger(), clazz, fetchSize, closure);
+	}
+
+	/**
+	 * Stream the rows of the table mapped by <code>clazz</code> to the closure one at a time, 
+	 * without materialising the whole table. The persistence context is cleared every 
+	 * <code>fetchSize</code> rows, so the entities passed to the closure are detached and
+	 * can be garbage collected as soon as the closure releases them.
+	 */
+	public static void loadTable(EntityManager entityManager, Class<?> clazz, int fetchSize, Closure closure) {
+		final Session session = entityManager.unwrap(Session.class);
+		final ScrollableResults results = scroll(session, "from " + clazz.getSimpleName() + " rec", fetchSize);
+		try {
+			int count = 0;
+			while (results.next()) {
+				closure.execute(results.get(0));
+				if (++count % fetchSize == 0)
+					session.clear();
+			}
+		} finally {
+			results.close();
+		}
+	}
+
+	public static <T> List<T> loadTable(Class<?> clazz, Transformer agentFactory) {
+		return loadTable(getEntityManger(), clazz, fetchSize, agentFactory);
+	}
+
+	/**
+	 * Stream the rows of the table mapped by <code>clazz</code> through the agent factory,
+	 * collecting the objects it returns. Rows for which the factory returns null are skipped.
+	 */
+	public static <T> List<T> loadTable(EntityManager entityManager, Class<?> clazz, int fetchSize, final Transformer agentFactory) {
+		final List<T> agents = new ArrayList<T>();
+		loadTable(entityManager, clazz, fetchSize, new Closure() {
+			@SuppressWarnings("unchecked")
+			public void execute(Object row) {
+				final Object agent = agentFactory.transform(row);
+				if (agent != null)
+					agents.add((T) agent);
+			}
+		});
+		return agents;
+	}
+
+	public static <T> List<T> loadTable(Class<?> clazz, String idProperty, Transformer agentFactory) {
+		return loadTable(clazz, idProperty, Runtime.getRuntime().availableProcessors(), agentFactory);
+	}
+
+	/**
+	 * Load the table mapped by <code>clazz</code> on several threads, each with its own 
+	 * EntityManager and reading a disjoint range of the numeric <code>idProperty</code>
+	 * (e.g. "id", or "id.id" for tables keyed by a PanelEntityKey). 
+	 * Each row is turned into an agent by the factory, which must therefore be thread safe.
+	 * 
+	 * @return The agents, in ascending order of idProperty whatever the number of threads.
+	 */
+	public static <T> List<T> loadTable(final Class<?> clazz, final String idProperty, int threads, final Transformer agentFactory) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Number of loading threads must be positive");
+		
+		final EntityManager entityManager = getEntityManger();
+		final Object[] range = (Object[]) entityManager.createQuery("select min(rec." + idProperty + "), max(rec." + idProperty + ") from " 
+				+ clazz.getSimpleName() + " rec").getSingleResult();
+		entityManager.close();
+		if (range[0] == null)
+			return new ArrayList<T>();
+		if (! (range[0] instanceof Number))
+			throw new IllegalArgumentException("Property " + idProperty + " of " + clazz.getSimpleName() + " is not numeric and cannot be used to partition the table");
+
+		final Number min = (Number) range[0];
+		final long from = min.longValue();
+		final long max = ((Number) range[1]).longValue();
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<List<T>>> partitions = new ArrayList<Future<List<T>>>();
+			for (long[] bounds : getPartitions(from, max, threads)) {
+				final Number partitionFrom = toIdType(bounds[0], min);
+				final Number partitionTo = toIdType(bounds[1], min);
+				partitions.add(executor.submit(new Callable<List<T>>() {
+					public List<T> call() throws Exception {
+						return loadPartition(clazz, idProperty, partitionFrom, partitionTo, agentFactory);
+					}
+				}));
+			}
+
+			final List<T> agents = new ArrayList<T>();
+			for (Future<List<T>> partition : partitions)
+				agents.addAll(partition.get());
+			return agents;
+		} catch (ExecutionException e) {
+			throw new SimulationRuntimeException("Partitioned loading of " + clazz.getSimpleName() + " failed", e.getCause());
+		} catch (InterruptedException e) {
+			throw new SimulationRuntimeException("Partitioned loading of " + clazz.getSimpleName() + " was interrupted", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Split the ids from min to max into at most about threads consecutive ranges. Bounds are included, 
+	 * so that a max equal to the largest value of the id type does not overflow.
+	 * 
+	 * @return the {lower, upper} bounds of each range, in ascending order.
+	 */
+	static List<long[]> getPartitions(long min, long max, int threads) {
+		final long span = max - min;
+		final long step = (span >= 0 ? span / threads + 1 : Long.MAX_VALUE / threads);		// span overflows for longs further apart than Long.MAX_VALUE
+		final List<long[]> partitions = new ArrayList<long[]>();
+		for (long lower = min; ; ) {
+			long upper = lower + step - 1;
+			if (upper >= max || upper < lower)
+				upper = max;
+			partitions.add(new long[] { lower, upper });
+			if (upper == max)
+				return partitions;
+			lower = upper + 1;
+		}
+	}
+
+	/** Load the rows whose idProperty lies between from and to, both included. */
+	private static <T> List<T> loadPartition(Class<?> clazz, String idProperty, Number from, Number to, Transformer agentFactory) {
+		final List<T> agents = new ArrayList<T>();
+		final EntityManager entityManager = getEntityManger();
+		final Session session = entityManager.unwrap(Session.class);
+		final ScrollableResults results = session.createQuery("from " + clazz.getSimpleName() + " rec where rec." + idProperty + " >= :from and rec." 
+					+ idProperty + " <= :to order by rec." + idProperty)
+				.setParameter("from", from)
+				.setParameter("to", to)
+				.setReadOnly(true)
+				.setFetchSize(fetchSize)
+				.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			int count = 0;
+			while (results.next()) {
+				@SuppressWarnings("unchecked")
+				final T agent = (T) agentFactory.transform(results.get(0));
+				if (agent != null)
+					agents.add(agent);
+				if (++count % fetchSize == 0)
+					session.clear();
+			}
+		} finally {
+			results.close();
+			entityManager.close();
+		}
+		return agents;
+	}
+
+	private static Number toIdType(long value, Number sample) {
+		if (sample instanceof Integer)
+			return Integer.valueOf((int) value);
+		else if (sample instanceof Short)
+			return Short.valueOf((short) value);
+		else
+			return Long.valueOf(value);
+	}
+
+	/**
+	 * Load the coefficient map of the annotated class from the input database. When {@link CoefficientMapCache#enabled} 
+	 * is set and the input database is a local H2 file, the map is cached next to the database file. 
+	 */
 	public static MultiKeyCoefficientMap loadCoefficientMap(Class<?> clazz)
 			throws IllegalArgumentException, SecurityException,
 			IllegalAccessException, NoSuchFieldException {
-		return loadCoefficientMap(getEntityManger(), clazz);
+		final Long fingerprint = getInputFingerprint();
+		if (! CoefficientMapCache.enabled || fingerprint == null)
+			return loadCoefficientMap(getEntityManger(), clazz);
+		
+		final File cacheFile = CoefficientMapCache.getCacheFile(new File(databaseInputUrl + ".h2.db"), clazz.getName(), fingerprint);
+		MultiKeyCoefficientMap map = CoefficientMapCache.read(cacheFile);
+		if (map == null) {
+			map = loadCoefficientMap(getEntityManger(), clazz);
+			CoefficientMapCache.write(map, cacheFile);
+		}
+		return map;
 	}
 
 	public static MultiKeyCoefficientMap loadCoefficientMap(
@@ -375,14 +823,32 @@ public class DatabaseUtils {
 
 		final String hql = "from " + clazz.getSimpleName() + " rec ";
 
-		final Query query = entityManager.createQuery(hql);
-
-		final List<?> res = query.getResultList();
+		final Session session = entityManager.unwrap(Session.class);
+		final ScrollableResults results = scroll(session, hql, fetchSize);
+		
+		final MultiKeyCoefficientMap map = MultiKeyCoefficientMapFactory.createMapFromAnnotatedClass(clazz);
+		try {
+			int count = 0;
+			while (results.next()) {
+				MultiKeyCoefficientMapFactory.putAnnotatedObject(map, results.get(0));
+				if (++count % fetchSize == 0)
+					session.clear();
+			}
+		} finally {
+			results.close();
+		}
 
 		tx.commit();
 
-		return MultiKeyCoefficientMapFactory.createMapFromAnnotatedList(res);
+		return map;
 	}
 
+	private static ScrollableResults scroll(Session session, String hql, int fetchSize) {
+		return session.createQuery(hql)
+				.setReadOnly(true)
+				.setCacheable(false)
+				.setFetchSize(fetchSize)
+				.scroll(ScrollMode.FORWARD_ONLY);
+	}
 	
 }
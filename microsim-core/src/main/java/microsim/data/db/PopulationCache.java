@@ -0,0 +1,345 @@
+package microsim.data.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.Embeddable;
+import javax.persistence.EntityManager;
+import javax.persistence.Transient;
+
+import microsim.data.CoefficientMapCache;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Binary cache of the agents loaded from the input database. The first load of an entity
+ * class reads the table through DatabaseUtils and writes the field values of every agent
+ * into a binary file, named after the class, the fingerprint of the database file and a hash
+ * of the persistent fields of the class (including the constants of enum fields, which are
+ * stored by ordinal). Following loads, as long as the database file and the class are
+ * unchanged, memory-map that file and set the fields of new instances directly, without
+ * going through Hibernate. A cache file that does not match the class, or is truncated or corrupt, is rebuilt.
+ *
+ * Only entities whose persistent fields are primitives, their wrappers, Strings, enums,
+ * Dates (including java.sql.Date and Timestamp) or embeddable objects made of those (e.g. PanelEntityKey) can be cached; relations
+ * are not supported. Cache files larger than 2GB are not written.
+ */
+public class PopulationCache {
+
+	private static Logger log = Logger.getLogger(PopulationCache.class);
+
+	private static final int MAGIC = 0x4a41534d;	// "JASM"
+	private static final int VERSION = 2;
+
+	private static final byte BOOLEAN = 1, BYTE = 2, SHORT = 3, CHAR = 4, INT = 5, LONG = 6, FLOAT = 7, DOUBLE = 8,
+			STRING = 9, ENUM = 10, DATE = 11, EMBEDDED = 12, TIMESTAMP = 13;
+
+	/** Thrown when the content of a cache file is not valid, so that the cache is rebuilt. */
+	private static class CorruptCacheException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		CorruptCacheException(String message) {
+			super(message);
+		}
+
+	}
+
+	/**
+	 * Load the table mapped by clazz from the cache folder if a cache of the current
+	 * database file exists, otherwise load it with the entity manager and write the cache.
+	 *
+	 * @param entityManager the entity manager used when the cache is missing.
+	 * @param clazz the entity class.
+	 * @param databaseFingerprint the fingerprint of the input database, e.g. from {@link CoefficientMapCache#fingerprint(File)}, which identifies the cache.
+	 * @param cacheFolder the folder containing the cache files.
+	 */
+	public static <T> List<T> loadTable(EntityManager entityManager, Class<T> clazz, long databaseFingerprint, File cacheFolder) throws IOException {
+		final FieldPlan plan = new FieldPlan(clazz);
+		final File cacheFile = new File(cacheFolder, cacheFileName(plan, databaseFingerprint));
+
+		if (cacheFile.exists()) {
+			log.debug("Loading " + clazz.getSimpleName() + " from cache " + cacheFile);
+			final List<T> agents = read(cacheFile, clazz, plan);
+			if (agents != null)
+				return agents;
+			log.warn("Population cache " + cacheFile + " does not match the fields of " + clazz.getName() + " or is corrupt, rebuilding it");
+		}
+
+		@SuppressWarnings("unchecked")
+		final List<T> agents = (List<T>) DatabaseUtils.loadTable(entityManager, clazz);
+
+		if (! cacheFolder.exists())
+			cacheFolder.mkdirs();
+		final File tmpFile = new File(cacheFolder, cacheFile.getName() + ".tmp");
+		write(tmpFile, agents, plan);
+		if (cacheFile.exists())
+			cacheFile.delete();		// a file that does not match the class
+		if (tmpFile.length() > Integer.MAX_VALUE || ! tmpFile.renameTo(cacheFile)) {
+			log.warn("Cannot write population cache " + cacheFile);
+			tmpFile.delete();
+		}
+
+		return agents;
+	}
+
+	/** The name of the cache file of the class of the plan, for a database with the given fingerprint. */
+	static String cacheFileName(FieldPlan plan, long databaseFingerprint) {
+		return plan.clazz.getName() + "-" + Long.toHexString(databaseFingerprint) + "-" + Integer.toHexString(plan.signature().hashCode()) + ".bin";
+	}
+
+	static void write(File file, List<?> agents, FieldPlan plan) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(plan.signature());
+			out.writeInt(agents.size());
+			for (Object agent : agents)
+				plan.write(out, agent);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the agents stored in the file, or null if it is not a valid cache file of the current fields of the class.
+	 */
+	static <T> List<T> read(File file, Class<T> clazz, FieldPlan plan) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (in.remaining() < 10 || in.getInt() != MAGIC || in.getInt() != VERSION)
+				return null;
+			final int signatureLength = in.getShort() & 0xffff;
+			if (in.remaining() < signatureLength)
+				return null;
+			final byte[] signature = new byte[signatureLength];
+			in.get(signature);
+			if (! plan.signature().equals(new String(signature, "UTF-8")))
+				return null;
+
+			final int size = in.getInt();
+			if (size < 0)
+				return null;
+			final List<T> agents = new ArrayList<T>(Math.min(size, in.remaining()));
+			for (int i = 0; i < size; i++)
+				agents.add(clazz.cast(plan.read(in)));
+			if (in.hasRemaining())
+				return null;
+			return agents;
+		} catch (BufferUnderflowException e) {
+			log.warn("Population cache " + file + " is truncated");
+			return null;
+		} catch (CorruptCacheException e) {
+			log.warn("Population cache " + file + " is corrupt: " + e.getMessage());
+			return null;
+		} catch (InstantiationException e) {
+			throw new IOException(e);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		} catch (InvocationTargetException e) {
+			throw new IOException(e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * The ordered list of persistent fields of a class, resolved once, with the type code
+	 * used to encode each of them.
+	 */
+	static class FieldPlan {
+
+		private final Class<?> clazz;
+		private final Field[] fields;
+		private final byte[] types;
+		private final FieldPlan[] embedded;
+		/** The (long) constructors of the Date fields, as Date subclasses such as java.sql.Date have no no-argument constructor. */
+		private final Constructor<?>[] dateConstructors;
+
+		FieldPlan(Class<?> clazz) {
+			this.clazz = clazz;
+			final List<Field> fieldList = new ArrayList<Field>();
+			for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())
+							|| field.isAnnotationPresent(Transient.class) || field.isSynthetic())
+						continue;
+					field.setAccessible(true);
+					fieldList.add(field);
+				}
+			}
+			fields = fieldList.toArray(new Field[fieldList.size()]);
+			types = new byte[fields.length];
+			embedded = new FieldPlan[fields.length];
+			dateConstructors = new Constructor<?>[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				types[i] = typeOf(fields[i].getType());
+				if (types[i] == EMBEDDED)
+					embedded[i] = new FieldPlan(fields[i].getType());
+				else if (types[i] == DATE || types[i] == TIMESTAMP) {
+					try {
+						dateConstructors[i] = fields[i].getType().getConstructor(long.class);
+					} catch (NoSuchMethodException e) {
+						throw new IllegalArgumentException("Field " + fields[i].getName() + " of " + clazz.getName() + " has type "
+								+ fields[i].getType().getName() + ", which has no public (long) constructor and cannot be stored in a population cache");
+					}
+				}
+				else if (types[i] == 0)
+					throw new IllegalArgumentException("Field " + fields[i].getName() + " of " + clazz.getName() + " has type "
+							+ fields[i].getType().getName() + ", which cannot be stored in a population cache");
+			}
+		}
+
+		private static byte typeOf(Class<?> type) {
+			if (type == boolean.class || type == Boolean.class) return BOOLEAN;
+			if (type == byte.class || type == Byte.class) return BYTE;
+			if (type == short.class || type == Short.class) return SHORT;
+			if (type == char.class || type == Character.class) return CHAR;
+			if (type == int.class || type == Integer.class) return INT;
+			if (type == long.class || type == Long.class) return LONG;
+			if (type == float.class || type == Float.class) return FLOAT;
+			if (type == double.class || type == Double.class) return DOUBLE;
+			if (type == String.class) return STRING;
+			if (type.isEnum()) return ENUM;
+			if (Timestamp.class.isAssignableFrom(type)) return TIMESTAMP;
+			if (Date.class.isAssignableFrom(type)) return DATE;
+			if (type.isAnnotationPresent(Embeddable.class)) return EMBEDDED;
+			return 0;
+		}
+
+		String signature() {
+			final StringBuilder sb = new StringBuilder(clazz.getName());
+			for (int i = 0; i < fields.length; i++) {
+				sb.append(';').append(fields[i].getName()).append(':').append(types[i]);
+				if (types[i] == ENUM) {
+					// Enums are stored by ordinal, so the constants and their order are part of the format
+					sb.append('[');
+					for (Object constant : fields[i].getType().getEnumConstants())
+						sb.append(((Enum<?>) constant).name()).append(',');
+					sb.append(']');
+				}
+				if (embedded[i] != null)
+					sb.append('(').append(embedded[i].signature()).append(')');
+			}
+			return sb.toString();
+		}
+
+		void write(DataOutputStream out, Object object) throws IOException, IllegalAccessException {
+			for (int i = 0; i < fields.length; i++) {
+				final Field field = fields[i];
+				final Object value = field.get(object);
+				if (! field.getType().isPrimitive()) {
+					out.writeBoolean(value != null);
+					if (value == null)
+						continue;
+				}
+				switch (types[i]) {
+					case BOOLEAN: out.writeBoolean((Boolean) value); break;
+					case BYTE: out.writeByte((Byte) value); break;
+					case SHORT: out.writeShort((Short) value); break;
+					case CHAR: out.writeChar((Character) value); break;
+					case INT: out.writeInt((Integer) value); break;
+					case LONG: out.writeLong((Long) value); break;
+					case FLOAT: out.writeFloat((Float) value); break;
+					case DOUBLE: out.writeDouble((Double) value); break;
+					case STRING:
+						final String s = (String) value;
+						out.writeInt(s.length());
+						out.writeChars(s);
+						break;
+					case ENUM: out.writeShort(((Enum<?>) value).ordinal()); break;
+					case DATE: out.writeLong(((Date) value).getTime()); break;
+					case TIMESTAMP:
+						out.writeLong(((Timestamp) value).getTime());
+						out.writeInt(((Timestamp) value).getNanos());
+						break;
+					case EMBEDDED: embedded[i].write(out, value); break;
+				}
+			}
+		}
+
+		Object read(MappedByteBuffer in) throws InstantiationException, IllegalAccessException, InvocationTargetException {
+			final Object object = clazz.newInstance();
+			for (int i = 0; i < fields.length; i++) {
+				final Field field = fields[i];
+				final Class<?> type = field.getType();
+				if (type.isPrimitive()) {
+					switch (types[i]) {
+						case BOOLEAN: field.setBoolean(object, in.get() != 0); break;
+						case BYTE: field.setByte(object, in.get()); break;
+						case SHORT: field.setShort(object, in.getShort()); break;
+						case CHAR: field.setChar(object, in.getChar()); break;
+						case INT: field.setInt(object, in.getInt()); break;
+						case LONG: field.setLong(object, in.getLong()); break;
+						case FLOAT: field.setFloat(object, in.getFloat()); break;
+						case DOUBLE: field.setDouble(object, in.getDouble()); break;
+					}
+					continue;
+				}
+
+				if (in.get() == 0) {
+					field.set(object, null);
+					continue;
+				}
+				switch (types[i]) {
+					case BOOLEAN: field.set(object, in.get() != 0); break;
+					case BYTE: field.set(object, in.get()); break;
+					case SHORT: field.set(object, in.getShort()); break;
+					case CHAR: field.set(object, in.getChar()); break;
+					case INT: field.set(object, in.getInt()); break;
+					case LONG: field.set(object, in.getLong()); break;
+					case FLOAT: field.set(object, in.getFloat()); break;
+					case DOUBLE: field.set(object, in.getDouble()); break;
+					case STRING:
+						final int length = in.getInt();
+						if (length < 0 || length > in.remaining() / 2)
+							throw new CorruptCacheException("string of length " + length + " in field " + field.getName());
+						final char[] chars = new char[length];
+						in.asCharBuffer().get(chars);
+						in.position(in.position() + 2 * chars.length);
+						field.set(object, new String(chars));
+						break;
+					case ENUM:
+						final Object[] constants = type.getEnumConstants();
+						final int ordinal = in.getShort();
+						if (ordinal < 0 || ordinal >= constants.length)
+							throw new CorruptCacheException("ordinal " + ordinal + " of enum field " + field.getName());
+						field.set(object, constants[ordinal]);
+						break;
+					case DATE: field.set(object, dateConstructors[i].newInstance(in.getLong())); break;
+					case TIMESTAMP:
+						final Timestamp timestamp = (Timestamp) dateConstructors[i].newInstance(in.getLong());
+						final int nanos = in.getInt();
+						if (nanos < 0 || nanos > 999999999)
+							throw new CorruptCacheException("nanoseconds " + nanos + " of timestamp field " + field.getName());
+						timestamp.setNanos(nanos);
+						field.set(object, timestamp);
+						break;
+					case EMBEDDED: field.set(object, embedded[i].read(in)); break;
+				}
+			}
+			return object;
+		}
+
+	}
+
+}
@@ -0,0 +1,32 @@
+package microsim.data.db.space;
+
+import javax.persistence.Embeddable;
+
+/**
+ * Entity storing a whole integer grid snapshot as a single compressed raster,
+ * instead of one row per cell as {@link IIntSpaceEntity} does.
+ */
+@Embeddable
+public interface IIntSpaceRasterEntity {
+
+	Double getSimulationTime();
+	
+	void setSimulationTime(Double time);
+	
+	Long getSimulationRun();
+	
+	void setSimulationRun(Long run);
+	
+	Integer getXSize();
+	
+	void setXSize(Integer xSize);
+	
+	Integer getYSize();
+	
+	void setYSize(Integer ySize);
+	
+	byte[] getRaster();
+	
+	void setRaster(byte[] raster);
+	
+}
@@ -0,0 +1,60 @@
+package microsim.data.db.space;
+
+import javax.persistence.Lob;
+import javax.persistence.MappedSuperclass;
+
+@MappedSuperclass
+public class IntSpaceRasterEntity implements IIntSpaceRasterEntity {
+
+	private Double simulationTime;
+	
+	private Long simulationRun;
+	
+	private Integer xSize;
+	
+	private Integer ySize;
+	
+	@Lob
+	private byte[] raster;
+
+	public Double getSimulationTime() {
+		return simulationTime;
+	}
+
+	public void setSimulationTime(Double simulationTime) {
+		this.simulationTime = simulationTime;
+	}
+
+	public Long getSimulationRun() {
+		return simulationRun;
+	}
+
+	public void setSimulationRun(Long simulationRun) {
+		this.simulationRun = simulationRun;
+	}
+
+	public Integer getXSize() {
+		return xSize;
+	}
+
+	public void setXSize(Integer xSize) {
+		this.xSize = xSize;
+	}
+
+	public Integer getYSize() {
+		return ySize;
+	}
+
+	public void setYSize(Integer ySize) {
+		this.ySize = ySize;
+	}
+
+	public byte[] getRaster() {
+		return raster;
+	}
+
+	public void setRaster(byte[] raster) {
+		this.raster = raster;
+	}
+
+}
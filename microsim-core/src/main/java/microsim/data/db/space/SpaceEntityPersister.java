@@ -1,9 +1,20 @@
 package microsim.data.db.space;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
 
 import microsim.engine.SimulationEngine;
 import microsim.space.IntSpace;
@@ -11,21 +22,48 @@ import microsim.space.ObjectSpace;
 
 public class SpaceEntityPersister {
 
+	/** Number of cell entities persisted before the persistence context is flushed and cleared. */
+	private static int batchSize = 10000;
+
+	/** Number of cells encoded or decoded at a time by the raster methods. */
+	private static final int RASTER_CHUNK = 65536;
+
+	public static int getBatchSize() {
+		return batchSize;
+	}
+
+	/** Set the number of cell entities persisted before the persistence context is flushed and cleared, which must be positive. */
+	public static void setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("The batch size must be positive, not " + batchSize);
+		SpaceEntityPersister.batchSize = batchSize;
+	}
+
 	public static void persistIntSpace(EntityManager entityManager, IntSpace space, Class<? extends IIntSpaceEntity> entityClass) throws Exception {
 		EntityTransaction tx = null;
 		tx = entityManager.getTransaction();
 		tx.begin();
-		
+
+		final Long run = new Long(SimulationEngine.getInstance().getCurrentRunNumber());
+		final Double time = SimulationEngine.getInstance().getTime();
+		final int[] matrix = space.getMatrix();
+		final int xSize = space.getXSize();
+
 		try {
-			for (int x = 0; x < space.getXSize(); x++) {
+			int count = 0;
+			for (int x = 0; x < xSize; x++) {
 				for (int y = 0; y < space.getYSize(); y++) {
 					final IIntSpaceEntity entity = entityClass.newInstance();
-					entity.setSimulationRun(new Long(SimulationEngine.getInstance().getCurrentRunNumber()));
-					entity.setSimulationTime(SimulationEngine.getInstance().getTime());
+					entity.setSimulationRun(run);
+					entity.setSimulationTime(time);
 					entity.setX(x);
 					entity.setY(y);
-					entity.setValue(space.get(x, y));
+					entity.setValue(matrix[y * xSize + x]);
 					entityManager.persist(entity);
+					if (++count % batchSize == 0) {
+						entityManager.flush();
+						entityManager.clear();
+					}
 				}
 			}
 		} catch (Exception e) {
@@ -33,7 +71,7 @@ public class SpaceEntityPersister {
 				tx.rollback();
 			throw e;
 		}
-		
+
 		tx.commit();
 	}
 
@@ -41,29 +79,163 @@ public class SpaceEntityPersister {
 		EntityTransaction tx = null;
 		tx = entityManager.getTransaction();
 		tx.begin();
-		
+
 		Field field = entityClass.getField(idField);
 		field.setAccessible(true);
-		
+
+		final Long run = new Long(SimulationEngine.getInstance().getCurrentRunNumber());
+		final Double time = SimulationEngine.getInstance().getTime();
+
 		try {
+			int count = 0;
 			for (int x = 0; x < space.getXSize(); x++) {
 				for (int y = 0; y < space.getYSize(); y++) {
 					final IIntSpaceEntity entity = entityClass.newInstance();
-					entity.setSimulationRun(new Long(SimulationEngine.getInstance().getCurrentRunNumber()));
-					entity.setSimulationTime(SimulationEngine.getInstance().getTime());
+					entity.setSimulationRun(run);
+					entity.setSimulationTime(time);
 					entity.setX(x);
 					entity.setY(y);
-					final Long value = field.getLong(space.get(x, y));  
-					entity.setValue(value.intValue());
+					entity.setValue(toCellValue(field.getLong(space.get(x, y)), x, y));
 					entityManager.persist(entity);
+					if (++count % batchSize == 0) {
+						entityManager.flush();
+						entityManager.clear();
+					}
+				}
+			}
+		} catch (Exception e) {
+			if (tx != null && tx.isActive())
+				tx.rollback();
+			throw e;
+		}
+
+		tx.commit();
+	}
+
+	/**
+	 * Persist the whole grid as a single entity holding the deflated cell matrix
+	 * (see {@link IntSpace#getMatrix()}), instead of one entity per cell.
+	 * Use {@link #loadIntSpace(EntityManager, Class, Long, Double)} to read it back.
+	 */
+	public static void persistIntSpaceRaster(EntityManager entityManager, IntSpace space, Class<? extends IIntSpaceRasterEntity> entityClass) throws Exception {
+		persistRaster(entityManager, space.getXSize(), space.getYSize(), space.getMatrix(), entityClass);
+	}
+
+	/**
+	 * Persist the grid as a single raster entity, where each cell value is the long field
+	 * <code>idField</code> of the object stored into the cell. Empty cells are stored as 0.
+	 */
+	public static void persistObjectSpaceRaster(EntityManager entityManager, ObjectSpace space, Class<? extends IIntSpaceRasterEntity> entityClass, String idField) throws Exception {
+		final int xSize = space.getXSize();
+		final int ySize = space.getYSize();
+		final int[] matrix = new int[xSize * ySize];
+
+		Class<?> lastClass = null;
+		Field field = null;
+		for (int x = 0; x < xSize; x++) {
+			for (int y = 0; y < ySize; y++) {
+				final Object obj = space.get(x, y);
+				if (obj == null)
+					continue;
+				if (obj.getClass() != lastClass) {
+					lastClass = obj.getClass();
+					field = lastClass.getField(idField);
+					field.setAccessible(true);
 				}
+				matrix[y * xSize + x] = toCellValue(field.getLong(obj), x, y);
 			}
+		}
+
+		persistRaster(entityManager, xSize, ySize, matrix, entityClass);
+	}
+
+	private static void persistRaster(EntityManager entityManager, int xSize, int ySize, int[] matrix, Class<? extends IIntSpaceRasterEntity> entityClass) throws Exception {
+		final IIntSpaceRasterEntity entity = entityClass.newInstance();
+		entity.setSimulationRun(new Long(SimulationEngine.getInstance().getCurrentRunNumber()));
+		entity.setSimulationTime(SimulationEngine.getInstance().getTime());
+		entity.setXSize(xSize);
+		entity.setYSize(ySize);
+		entity.setRaster(encodeRaster(matrix, xSize * ySize));
+
+		EntityTransaction tx = null;
+		tx = entityManager.getTransaction();
+		tx.begin();
+
+		try {
+			entityManager.persist(entity);
 		} catch (Exception e) {
 			if (tx != null && tx.isActive())
 				tx.rollback();
 			throw e;
 		}
-		
+
 		tx.commit();
 	}
+
+	/**
+	 * Load a grid stored by {@link #persistIntSpaceRaster(EntityManager, IntSpace, Class)}.
+	 *
+	 * @return The grid for the given run and time, or null if no snapshot was found.
+	 */
+	public static IntSpace loadIntSpace(EntityManager entityManager, Class<? extends IIntSpaceRasterEntity> entityClass, Long run, Double time) throws IOException {
+		final Query query = entityManager.createQuery("from " + entityClass.getSimpleName() +
+				" rec where rec.simulationRun = :run and rec.simulationTime = :time");
+		query.setParameter("run", run);
+		query.setParameter("time", time);
+		final List<?> res = query.getResultList();
+		if (res.isEmpty())
+			return null;
+
+		final IIntSpaceRasterEntity entity = (IIntSpaceRasterEntity) res.get(0);
+		final IntSpace space = new IntSpace(entity.getXSize(), entity.getYSize());
+		decodeRaster(entity.getRaster(), space.getMatrix(), space.size());
+		return space;
+	}
+
+	/** Narrow the id of the object in a cell to the int value of the cell, which must not overflow. */
+	private static int toCellValue(long value, int x, int y) {
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The id " + value + " of the object in cell (" + x + ", " + y + ") does not fit into the int value of the cell");
+		return (int) value;
+	}
+
+	public static byte[] encodeRaster(int[] matrix, int length) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED));
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, RASTER_CHUNK) * 4);
+		final IntBuffer ints = buffer.asIntBuffer();
+		try {
+			for (int offset = 0; offset < length; offset += RASTER_CHUNK) {
+				final int n = Math.min(RASTER_CHUNK, length - offset);
+				ints.clear();
+				ints.put(matrix, offset, n);
+				out.write(buffer.array(), 0, n * 4);
+			}
+		} finally {
+			out.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	public static void decodeRaster(byte[] raster, int[] matrix, int length) throws IOException {
+		final InputStream in = new InflaterInputStream(new ByteArrayInputStream(raster));
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, RASTER_CHUNK) * 4);
+		final IntBuffer ints = buffer.asIntBuffer();
+		try {
+			for (int offset = 0; offset < length; offset += RASTER_CHUNK) {
+				final int n = Math.min(RASTER_CHUNK, length - offset);
+				int read = 0;
+				while (read < n * 4) {
+					final int r = in.read(buffer.array(), read, n * 4 - read);
+					if (r < 0)
+						throw new IOException("Raster is shorter than the grid size");
+					read += r;
+				}
+				ints.clear();
+				ints.get(matrix, offset, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
 }
@@ -1,119 +1,90 @@
 package microsim.data.excel;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
 
+import microsim.data.CoefficientMapCache;
 import microsim.data.MultiKeyCoefficientMap;
 
-import org.apache.poi.hssf.usermodel.HSSFCell;
-import org.apache.poi.hssf.usermodel.HSSFRow;
-import org.apache.poi.hssf.usermodel.HSSFSheet;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-
+/**
+ * Loads MultiKeyCoefficientMaps from Excel worksheets, both .xls and .xlsx. Sheets are read 
+ * row by row with streaming readers, so memory does not grow with the size of the workbook.
+ * When {@link CoefficientMapCache#enabled} is set, loaded maps are cached next to the workbook.
+ */
 public class ExcelAssistant {
 
-	private static Object getCellValue(HSSFCell cell) {
-		Object val = null;
-		if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
-			val = cell.getStringCellValue();
-		} else if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-			val = cell.getNumericCellValue();
-			final Double d = (Double) val;
-			if (d - d.intValue() == 0.0)
-				val = d.intValue();
-		} else if (cell.getCellType() == Cell.CELL_TYPE_BOOLEAN) {
-			val = cell.getBooleanCellValue();
-		} else
-			val = null;
-		
-		return val;
+	private static String getStringCellValue(Object val) {
+		return MultiKeyCoefficientMap.toStringKey(val == null ? null : val.toString());
 	}
 	
-	private static String getStringCellValue(HSSFCell cell) {
-		Object val = null;
-		if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
-			val = cell.getStringCellValue();
-		} else if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-			val = getCellValue(cell) + "";
-		} else if (cell.getCellType() == Cell.CELL_TYPE_BOOLEAN) {
-			val = cell.getBooleanCellValue() + "";
-		} else
-			val = null;
-		
-		return MultiKeyCoefficientMap.toStringKey(val);
+	/**
+	 * Read the sheet of the workbook and pass its rows to the handler. Files with extension 
+	 * .xlsx are read as Office Open XML workbooks, all other files as binary (.xls) workbooks.
+	 */
+	static void readSheet(String excelFileName, String sheetName, int columns, SheetRowHandler handler) throws IOException {
+		final File file = new File(excelFileName);
+		if (excelFileName.toLowerCase().endsWith(".xlsx"))
+			XSSFStreamingReader.read(file, sheetName, columns, handler);
+		else
+			HSSFStreamingReader.read(file, sheetName, columns, handler);
 	}
 	
-	public static MultiKeyCoefficientMap loadCoefficientMap(String excelFileName, String sheetName, int keyColumns, int valueColumns) {
+	/**
+	 * Load the sheet into a map. The first row holds the names of the <code>keyColumns</code> key columns 
+	 * followed by the names of the <code>valueColumns</code> value columns. Formula cells take their cached result.
+	 */
+	public static MultiKeyCoefficientMap loadCoefficientMap(String excelFileName, String sheetName, final int keyColumns, final int valueColumns) {
 		
-		MultiKeyCoefficientMap map = null;
+		final MultiKeyCoefficientMap[] map = new MultiKeyCoefficientMap[1];
 		
 		try {
-			FileInputStream fileInputStream = new FileInputStream(excelFileName);
-			HSSFWorkbook workbook = new HSSFWorkbook(fileInputStream);
-			HSSFSheet worksheet = workbook.getSheet(sheetName);
-						
-			HSSFRow headerRow = worksheet.getRow(0);
-			String[] keyVector = new String[keyColumns];
-			for (int j = 0; j < keyColumns; j++) {
-				HSSFCell cell = headerRow.getCell((short) j, Row.RETURN_BLANK_AS_NULL);
-				String val = getStringCellValue(cell);
-				keyVector[j] = val;
-			}	
-			String[] valueVector = new String[valueColumns];
-			for (int j = keyColumns; j < valueColumns + keyColumns; j++) {
-				HSSFCell cell = headerRow.getCell((short) j, Row.RETURN_BLANK_AS_NULL);
-				String val = getStringCellValue(cell);
-				valueVector[j - keyColumns] = val;
+			File cacheFile = null;
+			if (CoefficientMapCache.enabled) {
+				cacheFile = CoefficientMapCache.getCacheFile(new File(excelFileName), sheetName + "-" + keyColumns + "-" + valueColumns);
+				map[0] = CoefficientMapCache.read(cacheFile);
+				if (map[0] != null)
+					return map[0];
 			}
 			
-			map = new MultiKeyCoefficientMap(keyVector, valueVector);
-			
-			for (int i = 1; i <= worksheet.getLastRowNum(); i++) {
-				HSSFRow row = worksheet.getRow(i);
-				Object[] keyValueVector = null;
-				if (valueColumns == 1) {					
-					keyValueVector = new Object[keyColumns + valueColumns];
-					for (int j = 0; j < keyColumns; j++) {
-						HSSFCell cell = row.getCell((short) j, Row.RETURN_BLANK_AS_NULL);
-						Object val = getCellValue(cell);
-						keyValueVector[j] = val;
-					}				
-										
-					for (int j = keyColumns; j < keyColumns + valueColumns; j++) {
-						HSSFCell cell = row.getCell((short) j, Row.RETURN_BLANK_AS_NULL);
-						Object val = getCellValue(cell);
+			readSheet(excelFileName, sheetName, keyColumns + valueColumns, new SheetRowHandler() {
+				
+				@Override
+				public void row(int rowIndex, Object[] cells) {
+					if (map[0] == null) {
+						String[] keyVector = new String[keyColumns];
+						for (int j = 0; j < keyColumns; j++)
+							keyVector[j] = getStringCellValue(cells[j]);
+						String[] valueVector = new String[valueColumns];
+						for (int j = keyColumns; j < valueColumns + keyColumns; j++)
+							valueVector[j - keyColumns] = getStringCellValue(cells[j]);
 						
-						keyValueVector[j] = val;
-					}	
-				} else {
-					keyValueVector = new Object[keyColumns + 1];
-					for (int j = 0; j < keyColumns; j++) {
-						HSSFCell cell = row.getCell((short) j, Row.RETURN_BLANK_AS_NULL);
-						Object val = getCellValue(cell);
-						keyValueVector[j] = val;
-					}				
+						map[0] = new MultiKeyCoefficientMap(keyVector, valueVector);
+						return;
+					}
 					
-					Object[] values = new Object[valueColumns];
-					for (int j = 0; j < valueColumns; j++) {
-						HSSFCell cell = row.getCell((short) (j + keyColumns), Row.RETURN_BLANK_AS_NULL);
-						Object val = getCellValue(cell);
+					Object[] keyValueVector = null;
+					if (valueColumns == 1) {
+						keyValueVector = cells;
+					} else {
+						keyValueVector = new Object[keyColumns + 1];
+						System.arraycopy(cells, 0, keyValueVector, 0, keyColumns);
 						
-						values[j] = val;
-					}	
-					keyValueVector[keyValueVector.length - 1] = values;
+						Object[] values = new Object[valueColumns];
+						System.arraycopy(cells, keyColumns, values, 0, valueColumns);
+						keyValueVector[keyValueVector.length - 1] = values;
+					}
+					map[0].putValue(keyValueVector);
 				}
-				map.putValue(keyValueVector);
-			}			
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+				
+			});
+			
+			if (cacheFile != null && map[0] != null)
+				CoefficientMapCache.write(map[0], cacheFile);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		
-		return map;
+		return map[0];
 	}
 
 }
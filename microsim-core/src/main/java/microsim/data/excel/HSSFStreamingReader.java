@@ -0,0 +1,141 @@
+package microsim.data.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.poifs.filesystem.DirectoryNode;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * Reads one worksheet of an .xls file with the HSSF event model, without building the workbook 
+ * in memory. Reading stops as soon as the requested sheet has been read.
+ */
+class HSSFStreamingReader extends AbortableHSSFListener {
+
+	private final String sheetName;
+	private final SheetRowBuffer buffer;
+	
+	private final List<BoundSheetRecord> boundSheets = new ArrayList<BoundSheetRecord>();
+	private BoundSheetRecord[] orderedSheets = null;
+	private SSTRecord sst = null;
+	private int sheetIndex = -1;
+	private boolean inSheet = false;
+	private boolean found = false;
+	private FormulaRecord stringFormula = null;
+	
+	private HSSFStreamingReader(String sheetName, SheetRowBuffer buffer) {
+		this.sheetName = sheetName;
+		this.buffer = buffer;
+	}
+	
+	static void read(File file, String sheetName, int columns, SheetRowHandler handler) throws IOException {
+		final HSSFStreamingReader reader = new HSSFStreamingReader(sheetName, new SheetRowBuffer(columns, handler));
+		final HSSFRequest request = new HSSFRequest();
+		request.addListenerForAllRecords(reader);
+		
+		final NPOIFSFileSystem fs = new NPOIFSFileSystem(file);
+		try {
+			final DirectoryNode root = fs.getRoot();
+			final InputStream in = root.createDocumentInputStream(root.hasEntry("Workbook") ? "Workbook" : "Book");
+			try {
+				new HSSFEventFactory().abortableProcessEvents(request, in);
+			} catch (HSSFUserException e) {
+				throw new IOException(e);
+			} finally {
+				in.close();
+			}
+		} finally {
+			fs.close();
+		}
+		
+		if (! reader.found)
+			throw new IllegalArgumentException("Sheet " + sheetName + " not found in " + file);
+	}
+	
+	@Override
+	public short abortableProcessRecord(Record record) throws HSSFUserException {
+		switch (record.getSid()) {
+			case BoundSheetRecord.sid:
+				boundSheets.add((BoundSheetRecord) record);
+				break;
+			case SSTRecord.sid:
+				sst = (SSTRecord) record;
+				break;
+			case BOFRecord.sid:
+				if (((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET) {
+					if (orderedSheets == null)
+						orderedSheets = BoundSheetRecord.orderByBofPosition(boundSheets);
+					sheetIndex++;
+					inSheet = sheetIndex < orderedSheets.length && orderedSheets[sheetIndex].getSheetname().equals(sheetName);
+					found |= inSheet;
+				}
+				break;
+			case EOFRecord.sid:
+				if (inSheet) {
+					buffer.flush();
+					return 1;		// done, stop reading the rest of the workbook
+				}
+				break;
+			default:
+				if (inSheet)
+					cell(record);
+		}
+		return 0;
+	}
+	
+	private void cell(Record record) {
+		switch (record.getSid()) {
+			case NumberRecord.sid:
+				final NumberRecord number = (NumberRecord) record;
+				buffer.cell(number.getRow(), number.getColumn(), SheetRowBuffer.numericValue(number.getValue()));
+				break;
+			case LabelSSTRecord.sid:
+				final LabelSSTRecord label = (LabelSSTRecord) record;
+				buffer.cell(label.getRow(), label.getColumn(), sst.getString(label.getSSTIndex()).getString());
+				break;
+			case LabelRecord.sid:
+				final LabelRecord oldLabel = (LabelRecord) record;
+				buffer.cell(oldLabel.getRow(), oldLabel.getColumn(), oldLabel.getValue());
+				break;
+			case BoolErrRecord.sid:
+				final BoolErrRecord bool = (BoolErrRecord) record;
+				if (bool.isBoolean())
+					buffer.cell(bool.getRow(), bool.getColumn(), bool.getBooleanValue());
+				break;
+			case FormulaRecord.sid:		// use the cached result of formulas
+				final FormulaRecord formula = (FormulaRecord) record;
+				if (formula.hasCachedResultString())
+					stringFormula = formula;		// the value follows in a StringRecord
+				else if (formula.getCachedResultType() == Cell.CELL_TYPE_NUMERIC)
+					buffer.cell(formula.getRow(), formula.getColumn(), SheetRowBuffer.numericValue(formula.getValue()));
+				else if (formula.getCachedResultType() == Cell.CELL_TYPE_BOOLEAN)
+					buffer.cell(formula.getRow(), formula.getColumn(), formula.getCachedBooleanValue());
+				break;
+			case StringRecord.sid:
+				if (stringFormula != null)
+					buffer.cell(stringFormula.getRow(), stringFormula.getColumn(), ((StringRecord) record).getString());
+				stringFormula = null;
+				break;
+		}
+	}
+	
+}
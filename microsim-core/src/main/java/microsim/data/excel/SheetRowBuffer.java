@@ -0,0 +1,44 @@
+package microsim.data.excel;
+
+/**
+ * Collects the cells reported one at a time by a streaming reader and passes each completed 
+ * row to the handler. Only the first <code>columns</code> columns are kept.
+ */
+class SheetRowBuffer {
+
+	private final int columns;
+	private final SheetRowHandler handler;
+	
+	private int row = -1;
+	private Object[] cells = null;
+	
+	SheetRowBuffer(int columns, SheetRowHandler handler) {
+		this.columns = columns;
+		this.handler = handler;
+	}
+	
+	void cell(int row, int column, Object value) {
+		if (column >= columns || value == null)
+			return;
+		if (row != this.row) {
+			flush();
+			this.row = row;
+			cells = new Object[columns];
+		}
+		cells[column] = value;
+	}
+	
+	void flush() {
+		if (cells != null)
+			handler.row(row, cells);
+		cells = null;
+	}
+	
+	/** The value of a numeric cell, as an Integer when it has no fractional part. */
+	static Object numericValue(double d) {
+		if (d - (int) d == 0.0)
+			return (int) d;
+		return d;
+	}
+	
+}
@@ -0,0 +1,12 @@
+package microsim.data.excel;
+
+/**
+ * Receives the rows of a worksheet from the streaming readers, in row order. 
+ * Cell values are Strings, Integers (for integral numbers), Doubles, Booleans or null for blank cells. 
+ * Rows without any cell are not reported.
+ */
+interface SheetRowHandler {
+
+	void row(int rowIndex, Object[] cells);
+	
+}
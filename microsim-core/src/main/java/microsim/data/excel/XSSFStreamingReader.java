@@ -0,0 +1,209 @@
+package microsim.data.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads one worksheet of an .xlsx file by parsing its XML parts with SAX, without building the 
+ * workbook in memory. Only the shared strings table is kept in memory while the sheet is read.
+ */
+class XSSFStreamingReader {
+
+	private static final String RELATIONSHIPS_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+	
+	static void read(File file, String sheetName, int columns, SheetRowHandler handler) throws IOException {
+		final ZipFile zip = new ZipFile(file);
+		try {
+			final SAXParser parser = newParser();
+			
+			// Resolve the sheet name to its part through the workbook relationships 
+			final Map<String, String> sheetIds = new HashMap<String, String>();
+			parse(parser, zip, "xl/workbook.xml", new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if (localName.equals("sheet"))
+						sheetIds.put(attributes.getValue("name"), attributes.getValue(RELATIONSHIPS_NS, "id"));
+				}
+			});
+			final String sheetId = sheetIds.get(sheetName);
+			if (sheetId == null)
+				throw new IllegalArgumentException("Sheet " + sheetName + " not found in " + file);
+			
+			final String[] target = new String[1];
+			parse(parser, zip, "xl/_rels/workbook.xml.rels", new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName, String qName, Attributes attributes) {
+					if (localName.equals("Relationship") && sheetId.equals(attributes.getValue("Id")))
+						target[0] = attributes.getValue("Target");
+				}
+			});
+			if (target[0] == null)
+				throw new IOException("Part of sheet " + sheetName + " not found in " + file);
+			final String sheetPart = target[0].startsWith("/") ? target[0].substring(1) : "xl/" + target[0];
+			
+			final List<String> sharedStrings = new ArrayList<String>();
+			if (zip.getEntry("xl/sharedStrings.xml") != null)
+				parse(parser, zip, "xl/sharedStrings.xml", new SharedStringsHandler(sharedStrings));
+			
+			final SheetRowBuffer buffer = new SheetRowBuffer(columns, handler);
+			parse(parser, zip, sheetPart, new SheetHandler(sharedStrings, buffer));
+			buffer.flush();
+		} catch (SAXException e) {
+			throw new IOException("Cannot read " + file, e);
+		} finally {
+			zip.close();
+		}
+	}
+	
+	private static SAXParser newParser() throws IOException {
+		try {
+			final SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			return factory.newSAXParser();
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		} catch (SAXException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private static void parse(SAXParser parser, ZipFile zip, String part, DefaultHandler handler) throws IOException, SAXException {
+		final ZipEntry entry = zip.getEntry(part);
+		if (entry == null)
+			throw new IOException("Missing part " + part);
+		final InputStream in = zip.getInputStream(entry);
+		try {
+			parser.parse(in, handler);
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static class SharedStringsHandler extends DefaultHandler {
+		
+		private final List<String> strings;
+		private final StringBuilder text = new StringBuilder();
+		private boolean inText = false;
+		private boolean inPhonetic = false;
+		
+		SharedStringsHandler(List<String> strings) {
+			this.strings = strings;
+		}
+		
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (localName.equals("si"))
+				text.setLength(0);
+			else if (localName.equals("rPh"))
+				inPhonetic = true;
+			else if (localName.equals("t"))
+				inText = ! inPhonetic;
+		}
+		
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (localName.equals("si"))
+				strings.add(text.toString());
+			else if (localName.equals("rPh"))
+				inPhonetic = false;
+			else if (localName.equals("t"))
+				inText = false;
+		}
+		
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (inText)
+				text.append(ch, start, length);
+		}
+		
+	}
+	
+	private static class SheetHandler extends DefaultHandler {
+		
+		private final List<String> sharedStrings;
+		private final SheetRowBuffer buffer;
+		private final StringBuilder text = new StringBuilder();
+		
+		private int row = -1;
+		private int column = -1;
+		private String type = null;
+		private boolean inValue = false;
+		
+		SheetHandler(List<String> sharedStrings, SheetRowBuffer buffer) {
+			this.sharedStrings = sharedStrings;
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (localName.equals("row")) {
+				final String r = attributes.getValue("r");
+				row = r != null ? Integer.parseInt(r) - 1 : row + 1;
+				column = -1;
+			} else if (localName.equals("c")) {
+				final String r = attributes.getValue("r");
+				column = r != null ? columnIndex(r) : column + 1;
+				type = attributes.getValue("t");
+				text.setLength(0);
+			} else if (localName.equals("v") || localName.equals("t")) {
+				inValue = true;
+			}
+		}
+		
+		@Override
+		public void endElement(String uri, String localName, String qName) {
+			if (localName.equals("v") || localName.equals("t"))
+				inValue = false;
+			else if (localName.equals("c"))
+				buffer.cell(row, column, value());
+		}
+		
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (inValue)
+				text.append(ch, start, length);
+		}
+		
+		private Object value() {
+			final String v = text.toString();
+			if (type == null || type.equals("n"))
+				return v.isEmpty() ? null : SheetRowBuffer.numericValue(Double.parseDouble(v));
+			if (type.equals("s"))
+				return sharedStrings.get(Integer.parseInt(v.trim()));
+			if (type.equals("str") || type.equals("inlineStr"))
+				return v;
+			if (type.equals("b"))
+				return v.trim().equals("1");
+			return null;		// errors
+		}
+		
+		private static int columnIndex(String reference) {
+			int column = 0;
+			for (int i = 0; i < reference.length(); i++) {
+				final char c = reference.charAt(i);
+				if (c < 'A' || c > 'Z')
+					break;
+				column = column * 26 + (c - 'A' + 1);
+			}
+			return column - 1;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,31 @@
+package microsim.engine;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork/join pool shared by the parallel parts of the library, and the seeding of independent random streams,
+ * so that the results of tasks do not depend on the order in which they run.
+ */
+public class ParallelUtils {
+
+	private static ForkJoinPool pool = null;
+
+	/** @return the fork/join pool shared by the parallel alignments and computations, created on first use. */
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	/**
+	 * The seed of the index-th random stream of seed, mixing the two with the SplitMix64 finaliser so that the
+	 * streams of consecutive indexes are unrelated.
+	 */
+	public static long streamSeed(long seed, int index) {
+		long z = seed + (index + 1) * 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+}
@@ -0,0 +1,13 @@
+package microsim.statistics;
+
+/**
+ * Implemented by objects whose variables are read through cached statistics, such as the memoised
+ * regressions, to tell the cache when their values have changed.
+ */
+public interface IVersionedSource {
+
+	/**
+	 * @return a stamp that the source changes (e.g. increments) every time one of its variables changes.
+	 */
+	public long getVersion();
+}
@@ -0,0 +1,156 @@
+package microsim.statistics.regression;
+
+import java.lang.reflect.Array;
+import java.util.Map;
+import java.util.Random;
+
+import microsim.engine.SimulationEngine;
+
+/**
+ * Sampler of a categorical distribution using Walker's alias method, in Vose's formulation.
+ * The alias tables are built in O(k) for k events, after which each draw takes a single random
+ * number and constant time, instead of the linear scan of {@link RegressionUtils#event(Object[], double[], Random)}.
+ *
+ * Build one sampler for each probability table that is used repeatedly (for instance one per age and
+ * gender cell) and keep it; when the probabilities of a table change, {@link #setProbabilities(double[])}
+ * rebuilds the tables in place without allocating.
+ * Note that, for the same random number, the event drawn is in general not the one that
+ * RegressionUtils.event() would draw, although both follow the same distribution.
+ */
+public class CategoricalSampler<T> {
+
+	private final T[] events;
+
+	/** Probability of keeping the event of a column instead of its alias. */
+	private final double[] threshold;
+	private final int[] alias;
+
+	// Work arrays of the construction, kept to rebuild the tables without allocating
+	private final double[] scaled;
+	private final int[] small;
+	private final int[] large;
+
+	/**
+	 * @param events the possible events.
+	 * @param prob the probability of each event, which must sum to 1.0.
+	 */
+	public CategoricalSampler(T[] events, double[] prob) {
+		if (events.length == 0 || events.length != prob.length)
+			throw new IllegalArgumentException("The events and probabilities must be non-empty arrays of the same length");
+
+		this.events = events;
+		threshold = new double[events.length];
+		alias = new int[events.length];
+		scaled = new double[events.length];
+		small = new int[events.length];
+		large = new int[events.length];
+		setProbabilities(prob);
+	}
+
+	/**
+	 * @param map the probability of each event, which must sum to 1.0.
+	 */
+	public CategoricalSampler(Map<T, Double> map) {
+		this(events(map), probabilities(map));
+	}
+
+	/**
+	 * The keys of the map in an array of their type (the enum type for enum constants, otherwise the most specific
+	 * class of all the keys), so that {@link #getEvents()} can be assigned to an array of that type.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T[] events(Map<T, Double> map) {
+		if (map.isEmpty())
+			throw new IllegalArgumentException("The events and probabilities must be non-empty arrays of the same length");
+
+		final T first = map.keySet().iterator().next();
+		Class<?> type = first instanceof Enum ? ((Enum<?>) first).getDeclaringClass() : first.getClass();
+		for (T event : map.keySet())
+			while (! type.isInstance(event))
+				type = type.getSuperclass();
+		return map.keySet().toArray((T[]) Array.newInstance(type, map.size()));
+	}
+
+	private static <T> double[] probabilities(Map<T, Double> map) {
+		final double[] prob = new double[map.size()];
+		int i = 0;
+		for (Double p : map.values())
+			prob[i++] = ((Number) p).doubleValue();
+		return prob;
+	}
+
+	/**
+	 * Replace the probabilities of the events, rebuilding the alias tables.
+	 *
+	 * @param prob the probability of each event, in the order of the events, which must sum to 1.0.
+	 */
+	public void setProbabilities(double[] prob) {
+		final int n = events.length;
+		if (prob.length != n)
+			throw new IllegalArgumentException("Expected " + n + " probabilities, got " + prob.length);
+
+		double x = 0.0;
+		for (int i = 0; i < n; i++) {
+			if (prob[i] < 0.)
+				throw new IllegalArgumentException("Choice's weights must be non-negative. Weight " + i + " is " + prob[i]);
+			x += prob[i];
+		}
+		if (Math.abs(x - 1.0) > RegressionUtils.EPSILON)
+			throw new IllegalArgumentException("Choice's weights must sum 1.0. Current vector sums " + x);
+
+		int smallSize = 0, largeSize = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = prob[i] * n;
+			if (scaled[i] < 1.0)
+				small[smallSize++] = i;
+			else
+				large[largeSize++] = i;
+		}
+
+		while (smallSize > 0 && largeSize > 0) {
+			final int less = small[--smallSize];
+			final int more = large[--largeSize];
+			threshold[less] = scaled[less];
+			alias[less] = more;
+			scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+			if (scaled[more] < 1.0)
+				small[smallSize++] = more;
+			else
+				large[largeSize++] = more;
+		}
+
+		// What is left has a scaled probability of 1, up to rounding errors
+		while (largeSize > 0) {
+			final int i = large[--largeSize];
+			threshold[i] = 1.0;
+			alias[i] = i;
+		}
+		while (smallSize > 0) {
+			final int i = small[--smallSize];
+			threshold[i] = 1.0;
+			alias[i] = i;
+		}
+	}
+
+	/** @return the index of an event drawn with rnd. */
+	public int nextIndex(Random rnd) {
+		final double u = rnd.nextDouble() * events.length;
+		final int column = (int) u;
+		return (u - column < threshold[column]) ? column : alias[column];
+	}
+
+	/** @return an event drawn with rnd. */
+	public T next(Random rnd) {
+		return events[nextIndex(rnd)];
+	}
+
+	/** @return an event drawn with the random generator of the simulation engine. */
+	public T next() {
+		return next(SimulationEngine.getRnd());
+	}
+
+	public T[] getEvents() {
+		return events;
+	}
+
+}
@@ -0,0 +1,212 @@
+package microsim.statistics.regression;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import microsim.data.MultiKeyCoefficientMap;
+import microsim.engine.ParallelUtils;
+
+import org.apache.commons.collections.MapIterator;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Parametric bootstrap of the coefficients of a regression, drawn from the multivariate normal distribution
+ * with the estimates as means and the covariance matrix of the map, as {@link RegressionUtils#bootstrap(MultiKeyCoefficientMap)}.
+ * The map has the same format: a single key, the regressor, an ESTIMATE value column and one value column per regressor.
+ *
+ * The map is parsed and the covariance matrix factorised once (Cholesky, or its eigen decomposition when it is only
+ * positive semi-definite), so that each replicate is a matrix-vector product. Replicate r is drawn from its own random
+ * stream, derived from a seed and r, so it does not depend on the other replicates: a MultiRun can build its
+ * coefficients with getReplicate(seed, getCounter()) and get the same set at each execution of the same run.
+ */
+public class CoefficientBootstrapper {
+
+	/** Relative tolerance under which negative eigenvalues of the covariance matrix are considered rounding errors. */
+	private static final double EIGENVALUE_TOLERANCE = 1.e-12;
+
+	/** Relative tolerance under which differences between the covariance matrix and its transpose are considered rounding errors. */
+	private static final double SYMMETRY_TOLERANCE = 1.e-6;
+
+	private final String[] keys;
+	/** The multikeys of the map, in the order of the map, and the row of the covariance matrix of each of them. */
+	private final MultiKey[] multiKeys;
+	private final int[] rows;
+
+	private final double[] means;
+	/** Square root of the covariance matrix, such that root * root' is the covariance matrix. */
+	private final double[][] root;
+
+	public CoefficientBootstrapper(MultiKeyCoefficientMap map) {
+		keys = map.getKeysNames();
+		if (keys.length > 1)
+			throw new IllegalArgumentException("There are more conditional keys in the multiKey of the map in CoefficientBootstrapper.  This cannot currently be handled.");
+		if (! keys[0].equals(RegressionColumnNames.REGRESSOR.toString()))
+			throw new IllegalArgumentException("CoefficientBootstrapper has no column named " + RegressionColumnNames.REGRESSOR.toString() + " in map.");
+
+		// Number the covariance columns in the order of the values, skipping the estimates
+		final String[] valuesNames = map.getValuesNames();
+		final Map<String, Integer> covarianceColumns = new LinkedHashMap<String, Integer>();
+		int estimateIndex = -1;
+		for (int i = 0; i < valuesNames.length; i++) {
+			if (valuesNames[i].equals(RegressionColumnNames.ESTIMATE.toString()))
+				estimateIndex = i;
+			else
+				covarianceColumns.put(valuesNames[i], covarianceColumns.size());
+		}
+		if (estimateIndex < 0)
+			throw new IllegalArgumentException("CoefficientBootstrapper has no value column named " + RegressionColumnNames.ESTIMATE.toString() + " in map.");
+
+		final int n = map.size();
+		if (covarianceColumns.size() != n)
+			throw new IllegalArgumentException("The map has " + n + " regressors but " + covarianceColumns.size() + " covariance columns");
+		multiKeys = new MultiKey[n];
+		rows = new int[n];
+		means = new double[n];
+		final double[][] covariance = new double[n][n];
+		int k = 0;
+		for (MapIterator iterator = map.mapIterator(); iterator.hasNext();) {
+			final MultiKey multiKey = (MultiKey) iterator.next();
+			final String regressor = multiKey.getKey(0).toString();
+			final Integer row = covarianceColumns.get(regressor);
+			if (row == null)
+				throw new IllegalArgumentException("The map has no covariance column for regressor " + regressor);
+			final Object[] values = (Object[]) iterator.getValue();
+			means[row] = ((Number) values[estimateIndex]).doubleValue();
+			for (int i = 0; i < valuesNames.length; i++)
+				if (i != estimateIndex)
+					covariance[row][covarianceColumns.get(valuesNames[i])] = ((Number) values[i]).doubleValue();
+			multiKeys[k] = multiKey;
+			rows[k] = row;
+			k++;
+		}
+
+		symmetrise(covariance);
+		root = factorise(new Array2DRowRealMatrix(covariance, false));
+	}
+
+	/**
+	 * Replace the covariance matrix by (C + C') / 2, so that asymmetries due to rounding (e.g. of the values of 
+	 * a spreadsheet) do not make the Cholesky decomposition fail. Larger asymmetries are errors of the map.
+	 */
+	private static void symmetrise(double[][] covariance) {
+		final int n = covariance.length;
+		double largest = 0.;
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				largest = Math.max(largest, Math.abs(covariance[i][j]));
+
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				if (Math.abs(covariance[i][j] - covariance[j][i]) > SYMMETRY_TOLERANCE * largest)
+					throw new IllegalArgumentException("The covariance matrix of the map is not symmetric: element (" + i + ", " + j + ") is " + covariance[i][j] + " but element (" + j + ", " + i + ") is " + covariance[j][i]);
+				final double mean = 0.5 * (covariance[i][j] + covariance[j][i]);
+				covariance[i][j] = mean;
+				covariance[j][i] = mean;
+			}
+		}
+	}
+
+	private static double[][] factorise(RealMatrix covariance) {
+		try {
+			return new CholeskyDecomposition(covariance).getL().getData();
+		} catch (NonPositiveDefiniteMatrixException e) {
+			// Semi-definite matrix: use V * sqrt(D) instead
+		}
+
+		final EigenDecomposition eigen = new EigenDecomposition(covariance);
+		final double[] eigenvalues = eigen.getRealEigenvalues();
+		double largest = 0.;
+		for (double eigenvalue : eigenvalues)
+			largest = Math.max(largest, Math.abs(eigenvalue));
+
+		final int n = eigenvalues.length;
+		final double[][] root = new double[n][n];
+		for (int j = 0; j < n; j++) {
+			if (eigenvalues[j] < - EIGENVALUE_TOLERANCE * largest)
+				throw new NonPositiveDefiniteMatrixException(eigenvalues[j], j, EIGENVALUE_TOLERANCE * largest);
+			final double scale = Math.sqrt(Math.max(eigenvalues[j], 0.));
+			final double[] eigenvector = eigen.getEigenvector(j).toArray();
+			for (int i = 0; i < n; i++)
+				root[i][j] = eigenvector[i] * scale;
+		}
+		return root;
+	}
+
+	/**
+	 * Draw a vector of coefficients, in the order of the covariance columns of the map, into coefficients.
+	 *
+	 * @param normals work array of the same length, receiving the standard normal draws.
+	 */
+	private void draw(Random rnd, double[] normals, double[] coefficients) {
+		final int n = means.length;
+		for (int j = 0; j < n; j++)
+			normals[j] = rnd.nextGaussian();
+		for (int i = 0; i < n; i++) {
+			final double[] rootRow = root[i];
+			double x = means[i];
+			for (int j = 0; j < n; j++)
+				x += rootRow[j] * normals[j];
+			coefficients[i] = x;
+		}
+	}
+
+	private MultiKeyCoefficientMap toMap(double[] coefficients) {
+		final MultiKeyCoefficientMap bootstrapMap = new MultiKeyCoefficientMap(keys, new String[] { RegressionColumnNames.COEFFICIENT.toString() });
+		for (int k = 0; k < multiKeys.length; k++)
+			bootstrapMap.put(multiKeys[k], coefficients[rows[k]]);
+		return bootstrapMap;
+	}
+
+	/**
+	 * @return a map of bootstrapped coefficients drawn with rnd, with the keys of the original map and a single
+	 * COEFFICIENT value column, as returned by RegressionUtils.bootstrap().
+	 */
+	public MultiKeyCoefficientMap sample(Random rnd) {
+		final double[] coefficients = new double[means.length];
+		draw(rnd, new double[means.length], coefficients);
+		return toMap(coefficients);
+	}
+
+	/**
+	 * @return the bootstrapped coefficients of a replication, which only depend on seed and replication.
+	 */
+	public MultiKeyCoefficientMap getReplicate(long seed, int replication) {
+		return sample(new Random(ParallelUtils.streamSeed(seed, replication)));
+	}
+
+	/**
+	 * Draw the coefficients of replications 0 to replications - 1 in one batch.
+	 *
+	 * @return the maps of the replications, where element r is the same as getReplicate(seed, r).
+	 */
+	public MultiKeyCoefficientMap[] getReplicates(long seed, int replications) {
+		final MultiKeyCoefficientMap[] maps = new MultiKeyCoefficientMap[replications];
+		final double[] normals = new double[means.length];
+		final double[] coefficients = new double[means.length];
+		for (int r = 0; r < replications; r++) {
+			draw(new Random(ParallelUtils.streamSeed(seed, r)), normals, coefficients);
+			maps[r] = toMap(coefficients);
+		}
+		return maps;
+	}
+
+	/**
+	 * Draw the coefficients of replications 0 to replications - 1 in one batch, without building maps.
+	 *
+	 * @return element [r][i] is the coefficient of the i-th regressor, in the order of the covariance columns of the map, in replication r.
+	 */
+	public double[][] getReplicateCoefficients(long seed, int replications) {
+		final double[][] coefficients = new double[replications][means.length];
+		final double[] normals = new double[means.length];
+		for (int r = 0; r < replications; r++)
+			draw(new Random(ParallelUtils.streamSeed(seed, r)), normals, coefficients[r]);
+		return coefficients;
+	}
+
+}
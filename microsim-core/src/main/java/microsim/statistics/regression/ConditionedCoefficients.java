@@ -0,0 +1,189 @@
+package microsim.statistics.regression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import microsim.data.MultiKeyCoefficientMap;
+import microsim.statistics.IDoubleSource;
+import microsim.statistics.IObjectSource;
+
+import org.apache.commons.collections.MapIterator;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.apache.commons.collections.map.AbstractReferenceMap;
+import org.apache.commons.collections.map.ReferenceIdentityMap;
+
+/**
+ * Index of a coefficient map by the values of its conditioning keys (all keys but the regressor), used by
+ * {@link LinearRegression#computeScore(MultiKeyCoefficientMap, IDoubleSource, Class, IObjectSource, Class)}.
+ *
+ * The regressors and coefficients of the entries sharing the same conditioning values are stored together,
+ * in the iteration order of the map, with the regressor names resolved to enum constants. Scoring an agent
+ * is one hashed lookup of its conditioning values followed by a dot product, summed in the same order as
+ * the scan of the whole map.
+ *
+ * An index is immutable once built, so it can be shared by threads without locking: a LinearRegression keeps 
+ * the index of its own map, and the static scoring method keeps one index per map and per thread.
+ */
+class ConditionedCoefficients {
+
+	/** 
+	 * Indexes of the maps scored so far by each thread, held by identity and released when the map is garbage collected. 
+	 * Each thread has its own, so that looking up an index does not need a lock.
+	 */
+	private static final ThreadLocal<Map<MultiKeyCoefficientMap, ConditionedCoefficients>> indexes = new ThreadLocal<Map<MultiKeyCoefficientMap, ConditionedCoefficients>>() {
+		@SuppressWarnings("unchecked")
+		@Override
+		protected Map<MultiKeyCoefficientMap, ConditionedCoefficients> initialValue() {
+			return new ReferenceIdentityMap(AbstractReferenceMap.WEAK, AbstractReferenceMap.HARD);
+		}
+	};
+
+	private static class Group {
+
+		final String[] regressors;
+		/** The regressors as constants of the double enum type, null for the names that are not constants. */
+		final Enum<?>[] covariates;
+		final double[] coefficients;
+
+		Group(String[] regressors, Enum<?>[] covariates, double[] coefficients) {
+			this.regressors = regressors;
+			this.covariates = covariates;
+			this.coefficients = coefficients;
+		}
+
+	}
+
+	/** Modification count of the map when the index was built, to detect that the map has changed. */
+	private final int mapVersion;
+	private final Class<?> enumTypeDouble;
+	private final Class<?> enumTypeObject;
+
+	private final Enum<?>[] conditioningKeys;
+	private final Map<String, Group> groups;
+
+	/**
+	 * @return the index of the map for the given enum types in the current thread, built on first use and rebuilt when the map changes.
+	 */
+	static <T extends Enum<T>, U extends Enum<U>> ConditionedCoefficients getIndex(MultiKeyCoefficientMap map, Class<T> enumTypeDouble, Class<U> enumTypeObject) {
+		final Map<MultiKeyCoefficientMap, ConditionedCoefficients> threadIndexes = indexes.get();
+		ConditionedCoefficients index = threadIndexes.get(map);
+		if (index == null || index.isStale(map, enumTypeDouble, enumTypeObject)) {
+			index = new ConditionedCoefficients(map, enumTypeDouble, enumTypeObject);
+			threadIndexes.put(map, index);
+		}
+		return index;
+	}
+
+	/** @return true if the index was not built from the current content of the map for the given enum types. */
+	boolean isStale(MultiKeyCoefficientMap map, Class<?> enumTypeDouble, Class<?> enumTypeObject) {
+		return mapVersion != map.getModificationCount() || this.enumTypeDouble != enumTypeDouble || this.enumTypeObject != enumTypeObject;
+	}
+
+	<T extends Enum<T>, U extends Enum<U>> ConditionedCoefficients(MultiKeyCoefficientMap map, Class<T> enumTypeDouble, Class<U> enumTypeObject) {
+		this.mapVersion = map.getModificationCount();
+		this.enumTypeDouble = enumTypeDouble;
+		this.enumTypeObject = enumTypeObject;
+
+		final String[] keys = map.getKeysNames();
+		final String regressorKey = RegressionColumnNames.REGRESSOR.toString();
+		int regressorColumnIndex = -1;
+		final List<Integer> conditioningColumns = new ArrayList<Integer>();
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i].equals(regressorKey))
+				regressorColumnIndex = i;
+			else
+				conditioningColumns.add(i);
+		}
+		if (regressorColumnIndex < 0)
+			throw new IllegalArgumentException("The MultiKeyCoefficientMap does not contain a key named " + regressorKey);
+
+		conditioningKeys = new Enum<?>[conditioningColumns.size()];
+		for (int c = 0; c < conditioningKeys.length; c++)
+			conditioningKeys[c] = Enum.valueOf(enumTypeObject, keys[conditioningColumns.get(c)]);
+
+		// Group the coefficients by conditioning key values, keeping the order of the map
+		final boolean multipleValues = map.getValuesNames().length > 1;
+		final int coefficientColumn = Arrays.asList(map.getValuesNames()).indexOf(RegressionColumnNames.COEFFICIENT.toString());
+		final Map<String, List<Object[]>> rows = new LinkedHashMap<String, List<Object[]>>();
+		final String[] values = new String[conditioningKeys.length];
+		for (MapIterator iterator = map.mapIterator(); iterator.hasNext();) {
+			final MultiKey coeffMK = (MultiKey) iterator.next();
+			for (int c = 0; c < values.length; c++)
+				values[c] = coeffMK.getKey(conditioningColumns.get(c)).toString();
+			final String groupKey = groupKey(values);
+
+			final double coefficient;
+			if (multipleValues)
+				coefficient = ((Number) ((Object[]) iterator.getValue())[coefficientColumn]).doubleValue();
+			else {
+				final Object value = iterator.getValue();
+				coefficient = ((Number) (value instanceof Object[] ? ((Object[]) value)[0] : value)).doubleValue();
+			}
+
+			List<Object[]> groupRows = rows.get(groupKey);
+			if (groupRows == null) {
+				groupRows = new ArrayList<Object[]>();
+				rows.put(groupKey, groupRows);
+			}
+			groupRows.add(new Object[] { coeffMK.getKey(regressorColumnIndex).toString(), coefficient });
+		}
+
+		groups = new HashMap<String, Group>();
+		for (Map.Entry<String, List<Object[]>> entry : rows.entrySet()) {
+			final List<Object[]> groupRows = entry.getValue();
+			final int n = groupRows.size();
+			final String[] regressors = new String[n];
+			final Enum<?>[] covariates = new Enum<?>[n];
+			final double[] coefficients = new double[n];
+			for (int i = 0; i < n; i++) {
+				regressors[i] = (String) groupRows.get(i)[0];
+				coefficients[i] = (Double) groupRows.get(i)[1];
+				try {
+					covariates[i] = Enum.valueOf(enumTypeDouble, regressors[i]);
+				} catch (IllegalArgumentException e) {
+					// reported when an agent of the group is scored
+				}
+			}
+			groups.put(entry.getKey(), new Group(regressors, covariates, coefficients));
+		}
+	}
+
+	private static String groupKey(String[] values) {
+		if (values.length == 1)
+			return values[0];
+		final StringBuilder groupKey = new StringBuilder();
+		for (int c = 0; c < values.length; c++) {
+			if (c > 0)
+				groupKey.append('\u0000');
+			groupKey.append(values[c]);
+		}
+		return groupKey.toString();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	double score(IDoubleSource iDblSrc, IObjectSource iObjSrc) {
+		final Group group;
+		if (conditioningKeys.length == 1)
+			group = groups.get(iObjSrc.getObjectValue(conditioningKeys[0]).toString());
+		else {
+			final String[] values = new String[conditioningKeys.length];
+			for (int c = 0; c < values.length; c++)
+				values[c] = iObjSrc.getObjectValue(conditioningKeys[c]).toString();
+			group = groups.get(groupKey(values));
+		}
+		if (group == null)
+			return 0.;
+
+		double sum = 0.;
+		for (int i = 0; i < group.coefficients.length; i++) {
+			final Enum<?> covariate = group.covariates[i] != null ? group.covariates[i] : Enum.valueOf((Class) enumTypeDouble, group.regressors[i]);
+			sum += iDblSrc.getDoubleValue(covariate) * group.coefficients[i];
+		}
+		return sum;
+	}
+
+}
@@ -1,13 +1,22 @@
 package microsim.statistics.regression;
 
+import java.util.List;
 import java.util.Map;
 
 import microsim.statistics.regression.ILinearRegression;
 
 public interface IBinaryChoiceRegression extends ILinearRegression {
 	
+	double getProbability(Object individual);
+	
 	boolean event(Object individual);
 
 	boolean event(Map<String, Double> values);
+	
+	/** Store the probability of the event for the i-th individual in probabilities[i]. */
+	void getProbabilities(List<?> individuals, double[] probabilities);
+	
+	/** Draw the event for each individual, in list order, storing the outcome of the i-th individual in events[i]. */
+	void events(List<?> individuals, boolean[] events);
 
 }
@@ -1,5 +1,6 @@
 package microsim.statistics.regression;
 
+import java.util.List;
 import java.util.Map;
 
 import microsim.statistics.IDoubleSource;
@@ -14,4 +15,7 @@ public interface ILinearRegression {
 	<T extends Enum<T>> double getScore(IDoubleSource iDblSrc, Class<T> enumType);
 	
 	<T extends Enum<T>, U extends Enum<U>> double getScore(IDoubleSource iDblSrc, Class<T> enumTypeDouble, IObjectSource iObjSrc, Class<U> enumTypeObject);
+	
+	/** Score each individual as getScore(Object) does, storing the score of the i-th individual in scores[i]. */
+	void getScores(List<?> individuals, double[] scores);
 }
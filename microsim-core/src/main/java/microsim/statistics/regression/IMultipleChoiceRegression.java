@@ -1,5 +1,6 @@
 package microsim.statistics.regression;
 
+import java.util.List;
 import java.util.Map;
 
 public interface IMultipleChoiceRegression<T extends Enum<T>> {
@@ -7,4 +8,7 @@ public interface IMultipleChoiceRegression<T extends Enum<T>> {
 	T eventType(Object individual); 
 	
 	T eventType(Map<String, Double> values);
+	
+	/** Draw the event type of each individual, in list order, storing the outcome of the i-th individual in eventTypes[i]. */
+	void eventTypes(List<?> individuals, T[] eventTypes);
 }
@@ -5,8 +5,13 @@ import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import microsim.data.CompiledCoefficientTable;
 import microsim.data.MultiKeyCoefficientMap;
 import microsim.statistics.IDoubleSource;
 import microsim.statistics.IObjectSource;
@@ -19,6 +24,20 @@ public class LinearRegression implements ILinearRegression {
 	
 	private MultiKeyCoefficientMap map = null;
 	
+	/** Populations of at least this size are split across a fork/join pool by getScores(List, double[]). By default scoring is sequential. */
+	public static int parallelScoringThreshold = Integer.MAX_VALUE;
+	
+	/** Number of agents whose covariates are extracted and scored at a time by getScores(List, double[]). */
+	private static final int SCORING_CHUNK = 1024;
+	
+	private static ForkJoinPool scoringPool = null;
+	
+	/** Compiled scoring plans of getScore(Object), one per agent class. */
+	private final Map<Class<?>, ScoringPlan> scoringPlans = new ConcurrentHashMap<Class<?>, ScoringPlan>();
+	
+	/** Index of the map by conditioning keys used by getScore(IDoubleSource, Class, IObjectSource, Class), built on first use. */
+	private volatile ConditionedCoefficients conditionedCoefficients = null;
+	
 	/**
 	 * Linear Regression object.
 	 * 
@@ -187,6 +206,27 @@ public class LinearRegression implements ILinearRegression {
 		}
 	}
 
+	
+	/**
+	 * Same as computeScore(MultiKeyCoefficientMap, IDoubleSource, Class, boolean), reading the coefficients from a table compiled 
+	 * with {@link MultiKeyCoefficientMap#compile()}, whose only key is the name of the regressor. 
+	 * The regressor names are resolved to enum constants once per table, and no lookup allocates. 
+	 */
+	public static <T extends Enum<T>> double computeScore(CompiledCoefficientTable coeffTable, IDoubleSource iDblSrc, Class<T> enumType) {
+		if (coeffTable.getArity() != 1)
+			throw new IllegalArgumentException("Error - the compiled coefficient table has more than one key, whereas LinearRegression.computeScore(CompiledCoefficientTable, IDoubleSource, Class<T>) assumes the regressor is the only key.");
+		
+		final T[] regressors = coeffTable.getKeyEnums(0, enumType);
+		final int column = coeffTable.getValuesNames().length == 1 ? 0 : coeffTable.getValueColumn(RegressionColumnNames.COEFFICIENT.toString());
+		if (column < 0)
+			throw new IllegalArgumentException("The compiled coefficient table has no " + RegressionColumnNames.COEFFICIENT.toString() + " column");
+		
+		double sum = 0.;
+		for (int row = 0; row < coeffTable.size(); row++)
+			sum += iDblSrc.getDoubleValue(regressors[coeffTable.getRowKeyCode(row, 0)]) * coeffTable.getRowValue(row, column);
+		return sum;
+	}
+	
 		
 	/**
 	 * Uses reflection to obtain information from the iDblSrc object, so it is possibly slow.  For time critical cases, use the other computerScore method that requires 
@@ -316,10 +356,97 @@ public class LinearRegression implements ILinearRegression {
 	 * 
 	 * @param agent is the object whose fields must match by name, the regressors and 
 	 *  additional conditioning keys of the Regression map's MultiKeys.  
+	 *  The getters and coefficients are resolved once per agent class into a compiled plan, 
+	 *  giving the same score as computeScore(MultiKeyCoefficientMap, Object) without reflection.
 	 * @author Ross Richardson  
 	 */
 	public double getScore(Object agent) {
-		return computeScore(map, agent);
+		return getScoringPlan(agent.getClass()).score(agent);
+	}
+	
+	/**
+	 * Score a whole population, as getScore(Object) would score each agent. When the map has no conditioning keys 
+	 * the covariates of each chunk of agents are extracted into column-major arrays and multiplied by the coefficients 
+	 * in tight loops; populations larger than {@link #parallelScoringThreshold} are split across a fork/join pool.
+	 * 
+	 * @param individuals the agents to score.
+	 * @param scores receives the score of the i-th agent at index i. 
+	 */
+	public void getScores(List<?> individuals, double[] scores) {
+		final Object[] agents = individuals.toArray();
+		if (scores.length < agents.length)
+			throw new IllegalArgumentException("The scores array is shorter than the list of individuals");
+		
+		if (agents.length >= parallelScoringThreshold)
+			getScoringPool().invoke(new ScoringTask(agents, 0, agents.length, scores));
+		else
+			getScores(agents, 0, agents.length, scores);
+	}
+	
+	private void getScores(Object[] agents, int from, int to, double[] scores) {
+		double[][] columns = null;
+		for (int start = from; start < to; start += SCORING_CHUNK) {
+			final int end = Math.min(start + SCORING_CHUNK, to);
+			final ScoringPlan plan = getScoringPlan(agents[start].getClass());
+			boolean sameClass = ! plan.hasConditioningKeys();
+			for (int i = start + 1; sameClass && i < end; i++)
+				sameClass = agents[i].getClass() == plan.agentClass;
+			
+			if (sameClass) {
+				if (columns == null || columns.length != plan.getSingleGroupSize())
+					columns = new double[plan.getSingleGroupSize()][SCORING_CHUNK];
+				plan.score(agents, start, end, scores, columns);
+			} else {
+				for (int i = start; i < end; i++)
+					scores[i] = getScore(agents[i]);
+			}
+		}
+	}
+	
+	private static synchronized ForkJoinPool getScoringPool() {
+		if (scoringPool == null)
+			scoringPool = new ForkJoinPool();
+		return scoringPool;
+	}
+	
+	private class ScoringTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Object[] agents;
+		private final int from, to;
+		private final double[] scores;
+		
+		ScoringTask(Object[] agents, int from, int to, double[] scores) {
+			this.agents = agents;
+			this.from = from;
+			this.to = to;
+			this.scores = scores;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= 4 * SCORING_CHUNK)
+				getScores(agents, from, to, scores);
+			else {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new ScoringTask(agents, from, middle, scores), new ScoringTask(agents, middle, to, scores));
+			}
+		}
+		
+	}
+	
+	/**
+	 * The plan used by getScore(Object) for agents of the class, compiled on first use. 
+	 * It is compiled again if the map has changed since, see {@link MultiKeyCoefficientMap#getModificationCount()}.
+	 */
+	ScoringPlan getScoringPlan(Class<?> agentClass) {
+		ScoringPlan plan = scoringPlans.get(agentClass);
+		if (plan == null || plan.mapVersion != map.getModificationCount()) {
+			plan = new ScoringPlan(map, agentClass);
+			scoringPlans.put(agentClass, plan);
+		}
+		return plan;
 	}
 
 	/** 
@@ -457,7 +584,13 @@ public class LinearRegression implements ILinearRegression {
 	 * @author Ross Richardson  
 	 */
 	public <T extends Enum<T>, U extends Enum<U>> double getScore(IDoubleSource iDblSrc, Class<T> enumTypeDouble, IObjectSource iObjSrc, Class<U> enumTypeObject) {
-		return computeScore(map, iDblSrc, enumTypeDouble, iObjSrc, enumTypeObject);
+		// The index is immutable: threads racing to rebuild it build equal ones, so no lock is needed
+		ConditionedCoefficients index = conditionedCoefficients;
+		if (index == null || index.isStale(map, enumTypeDouble, enumTypeObject)) {
+			index = new ConditionedCoefficients(map, enumTypeDouble, enumTypeObject);
+			conditionedCoefficients = index;
+		}
+		return index.score(iDblSrc, iObjSrc);
 	}	
 	
 	/**
@@ -477,53 +610,8 @@ public class LinearRegression implements ILinearRegression {
 	 */
 	public static <T extends Enum<T>, U extends Enum<U>> double computeScore(MultiKeyCoefficientMap coeffMultiMap, IDoubleSource iDblSrc, Class<T> enumTypeDouble, IObjectSource iObjSrc, Class<U> enumTypeObject) 
 	{				
-			double sum = 0.;
-			int regressorColumnIndex = -1;
-			String[] coeffMultiMapKeysNames = coeffMultiMap.getKeysNames();
-			for (MapIterator iterator = coeffMultiMap.mapIterator(); iterator.hasNext();) {
-				iterator.next();
-				
-				MultiKey coeffMK = (MultiKey) iterator.getKey();
-				boolean coeffMKapplicableForIDblSrc = true;
-				int i = 0;	
-				while(i < coeffMultiMapKeysNames.length) {
-					if(coeffMultiMapKeysNames[i].equals(RegressionColumnNames.REGRESSOR.toString())) {
-						regressorColumnIndex = i;
-//						System.out.println("regressor column index is " + regressorColumnIndex);
-					}
-					else {
-						if(!coeffMK.getKey(i).toString().equals(iObjSrc.getObjectValue(Enum.valueOf(enumTypeObject, coeffMultiMapKeysNames[i])).toString())) {
-							coeffMKapplicableForIDblSrc = false;		
-							break;
-						}						
-					}
-
-					i++;
-				}
-				if(coeffMKapplicableForIDblSrc == true) {
-					String regressor = ((String) ((MultiKey) coeffMK).getKey(regressorColumnIndex));
-					double covariate = iDblSrc.getDoubleValue(Enum.valueOf(enumTypeDouble, regressor));		//Gets value of variable with key that matches the regressor string from object implementing IDoubleSource interface
-					if(coeffMultiMap.getValuesNames().length > 1) {			//Case when coeffMultiMap has more than one value column
-						Object[] fullKeys = new Object[coeffMK.getKeys().length+1];
-						for(int i1 = 0; i1 < coeffMK.getKeys().length; i1++) {
-							fullKeys[i1] = coeffMK.getKey(i1);
-						}
-						String columnName = RegressionColumnNames.COEFFICIENT.toString();
-						fullKeys[coeffMK.getKeys().length] = columnName;
-
-						double regCoefficient = ((Number)coeffMultiMap.getValue(fullKeys)).doubleValue();
-						sum += covariate * regCoefficient;
-//						System.out.println("regressor " + regressor + ", " + "covariate " + covariate + ", " + " regCoefficient " + regCoefficient);
-					}
-					else {							//Case when coeffMultiMap only has one value column
-						double regCoefficient = ((Number)coeffMultiMap.get(coeffMK)).doubleValue();		
-						sum += covariate * regCoefficient;
-//						System.out.println("regressor " + regressor + ", " + "covariate " + covariate + ", " + " regCoefficient " + regCoefficient);
-					}
-				}
-					
-			}
-			return sum;
+		//The coefficients are indexed once by the values of the conditioning keys, so only the entries that apply to iObjSrc are visited
+		return ConditionedCoefficients.getIndex(coeffMultiMap, enumTypeDouble, enumTypeObject).score(iDblSrc, iObjSrc);
 	}
 	
 	private static Map<String, Double> extractMapNumbersAndBooleans(Object object) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
@@ -0,0 +1,96 @@
+package microsim.statistics.regression;
+
+import cern.jet.random.Normal;
+import cern.jet.stat.Probability;
+
+/**
+ * Link functions of the binary and multinomial choice regressions, with an optional fast-math mode.
+ *
+ * In fast-math mode the standard normal cumulative distribution function and the logistic function are
+ * computed by cubic Hermite interpolation of tables of their values and derivatives, built once when the
+ * class is loaded. The maximum absolute error is below {@link #MAX_ERROR} over the whole real line; beyond
+ * the range of the tables the functions return 0 or 1, which are within 1e-15 of the exact values.
+ * The default mode uses the exact functions, so that results do not change unless fastMath is set.
+ */
+public class LinkFunctions {
+
+	/** When true, ProbitRegression, LogitRegression and MultiProbitRegression use the tabulated link functions. */
+	public static boolean fastMath = false;
+
+	/** Upper bound of the absolute error of {@link #normalCdf(double)} and {@link #logistic(double)}. */
+	public static final double MAX_ERROR = 1.e-9;
+
+	private static final double NORMAL_RANGE = 8.;
+	private static final double NORMAL_STEP = 1. / 64;
+	private static final double[] NORMAL_VALUES, NORMAL_SLOPES;
+
+	private static final double LOGISTIC_RANGE = 37.;
+	private static final double LOGISTIC_STEP = 1. / 32;
+	private static final double[] LOGISTIC_VALUES, LOGISTIC_SLOPES;
+
+	static {
+		final int normalPoints = (int) Math.round(2 * NORMAL_RANGE / NORMAL_STEP) + 1;
+		NORMAL_VALUES = new double[normalPoints];
+		NORMAL_SLOPES = new double[normalPoints];
+		for (int i = 0; i < normalPoints; i++) {
+			final double x = - NORMAL_RANGE + i * NORMAL_STEP;
+			NORMAL_VALUES[i] = Probability.normal(x);
+			NORMAL_SLOPES[i] = Math.exp(- 0.5 * x * x) / Math.sqrt(2 * Math.PI);
+		}
+
+		final int logisticPoints = (int) Math.round(2 * LOGISTIC_RANGE / LOGISTIC_STEP) + 1;
+		LOGISTIC_VALUES = new double[logisticPoints];
+		LOGISTIC_SLOPES = new double[logisticPoints];
+		for (int i = 0; i < logisticPoints; i++) {
+			final double x = - LOGISTIC_RANGE + i * LOGISTIC_STEP;
+			LOGISTIC_VALUES[i] = exactLogistic(x);
+			LOGISTIC_SLOPES[i] = LOGISTIC_VALUES[i] * (1 - LOGISTIC_VALUES[i]);
+		}
+	}
+
+	private static double interpolate(double[] values, double[] slopes, double step, double position) {
+		// Just below the end of the table the position can round up to the last point: interpolate in the last interval
+		final int i = Math.min((int) position, values.length - 2);
+		final double u = position - i;
+		final double v = 1 - u;
+		return v * v * ((1 + 2 * u) * values[i] + u * step * slopes[i])
+				+ u * u * ((3 - 2 * u) * values[i + 1] - v * step * slopes[i + 1]);
+	}
+
+	/** @return the standard normal cumulative distribution function at x, interpolated from a table. */
+	public static double normalCdf(double x) {
+		if (x != x)
+			return x;
+		if (x <= - NORMAL_RANGE)
+			return 0.;
+		if (x >= NORMAL_RANGE)
+			return 1.;
+		return interpolate(NORMAL_VALUES, NORMAL_SLOPES, NORMAL_STEP, (x + NORMAL_RANGE) / NORMAL_STEP);
+	}
+
+	/** @return the logistic function 1 / (1 + exp(-x)), interpolated from a table. */
+	public static double logistic(double x) {
+		if (x != x)
+			return x;
+		if (x <= - LOGISTIC_RANGE)
+			return 0.;
+		if (x >= LOGISTIC_RANGE)
+			return 1.;
+		return interpolate(LOGISTIC_VALUES, LOGISTIC_SLOPES, LOGISTIC_STEP, (x + LOGISTIC_RANGE) / LOGISTIC_STEP);
+	}
+
+	public static double exactLogistic(double x) {
+		return (double) 1 / (1 + Math.exp(- x));
+	}
+
+	/** The probit transform of a score: normalRV.cdf(score), or its tabulated approximation in fast-math mode. */
+	static double probit(Normal normalRV, double score) {
+		return fastMath ? normalCdf(score) : normalRV.cdf(score);
+	}
+
+	/** The logit transform of a score, tabulated in fast-math mode. */
+	static double logit(double score) {
+		return fastMath ? logistic(score) : exactLogistic(score);
+	}
+
+}
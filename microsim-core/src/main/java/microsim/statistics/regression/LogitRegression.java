@@ -1,5 +1,6 @@
 package microsim.statistics.regression;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -25,12 +26,12 @@ public class LogitRegression extends LinearRegression implements IBinaryChoiceRe
 
 	public double getProbability(Map<String, Double> values) {
 		final double score = super.getScore(values);		
-		return (double) 1 / (1 + Math.exp(- score));
+		return LinkFunctions.logit(score);
 	}
 	
 	public double getProbability(Object individual) {
 		final double score = super.getScore(individual);		
-		return (double) 1 / (1 + Math.exp(- score));			
+		return LinkFunctions.logit(score);			
 	}
 	
 //	@Override
@@ -45,6 +46,20 @@ public class LogitRegression extends LinearRegression implements IBinaryChoiceRe
 		return (random.nextDouble() < probability);		
 	}
 	
+	public void getProbabilities(List<?> individuals, double[] probabilities) {
+		getScores(individuals, probabilities);
+		final int n = individuals.size();
+		for (int i = 0; i < n; i++)
+			probabilities[i] = LinkFunctions.logit(probabilities[i]);
+	}
+	
+	public void events(List<?> individuals, boolean[] events) {
+		final double[] probabilities = new double[individuals.size()];
+		getProbabilities(individuals, probabilities);
+		for (int i = 0; i < probabilities.length; i++)
+			events[i] = (random.nextDouble() < probabilities[i]);
+	}
+	
 	////////////////////////////////
 	//	New methods
 	//	@author Ross Richardson
@@ -53,7 +68,7 @@ public class LogitRegression extends LinearRegression implements IBinaryChoiceRe
 	
 	public <T extends Enum<T>> double getProbability(IDoubleSource iDblSrc, Class<T> enumType) {
 		final double score = super.getScore(iDblSrc, enumType);		
-		return (double) 1 / (1 + Math.exp(- score));			
+		return LinkFunctions.logit(score);			
 	}
 	
 	public <T extends Enum<T>> boolean event(IDoubleSource iDblSrc, Class<T> enumType) {
@@ -63,7 +78,7 @@ public class LogitRegression extends LinearRegression implements IBinaryChoiceRe
 	
 	public <T extends Enum<T>, U extends Enum<U>> double getProbability(IDoubleSource iDblSrc, Class<T> enumTypeDbl, IObjectSource iObjSrc, Class<U> enumTypeObj) {
 		final double score = super.getScore(iDblSrc, enumTypeDbl, iObjSrc, enumTypeObj);		
-		return (double) 1 / (1 + Math.exp(- score));			
+		return LinkFunctions.logit(score);			
 	}
 	
 	public <T extends Enum<T>, U extends Enum<U>> boolean event(IDoubleSource iDblSrc, Class<T> enumTypeDbl, IObjectSource iObjSrc, Class<U> enumTypeObj) {
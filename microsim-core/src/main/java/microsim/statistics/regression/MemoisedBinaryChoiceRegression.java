@@ -0,0 +1,71 @@
+package microsim.statistics.regression;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import microsim.engine.SimulationEngine;
+
+/**
+ * Opt-in cache of the probabilities of a binary choice regression, with the same invalidation rules as
+ * {@link MemoisedLinearRegression}. Events are drawn from the cached probabilities with the random generator
+ * of this object, so that drawing an event does not compute the probability again.
+ */
+public class MemoisedBinaryChoiceRegression extends MemoisedLinearRegression implements IBinaryChoiceRegression {
+
+	private final IBinaryChoiceRegression regression;
+
+	private final Random random;
+
+	private final RegressionMemo probabilities = new RegressionMemo();
+
+	public MemoisedBinaryChoiceRegression(IBinaryChoiceRegression regression) {
+		this(regression, SimulationEngine.getRnd());
+	}
+
+	public MemoisedBinaryChoiceRegression(IBinaryChoiceRegression regression, Random random) {
+		super(regression);
+		this.regression = regression;
+		this.random = random;
+	}
+
+	@Override
+	public void invalidate() {
+		super.invalidate();
+		probabilities.clear();
+	}
+
+	public double getProbability(Object individual) {
+		final RegressionMemo.Entry entry = probabilities.get(individual);
+		if (! entry.set) {
+			entry.value = regression.getProbability(individual);
+			entry.set = true;
+		}
+		return entry.value;
+	}
+
+	/** The individuals whose probabilities are not cached are passed in one batch to the underlying regression. */
+	public void getProbabilities(List<?> individuals, double[] probabilities) {
+		this.probabilities.getAll(individuals, probabilities, new RegressionMemo.BatchFunction() {
+			@Override
+			public void apply(List<Object> individuals, double[] values) {
+				regression.getProbabilities(individuals, values);
+			}
+		});
+	}
+
+	public boolean event(Object individual) {
+		return random.nextDouble() < getProbability(individual);
+	}
+
+	public boolean event(Map<String, Double> values) {
+		return regression.event(values);
+	}
+
+	public void events(List<?> individuals, boolean[] events) {
+		int i = 0;
+		for (Object individual : individuals)
+			events[i++] = random.nextDouble() < getProbability(individual);
+	}
+
+}
@@ -0,0 +1,72 @@
+package microsim.statistics.regression;
+
+import java.util.List;
+import java.util.Map;
+
+import microsim.event.EventListener;
+import microsim.statistics.IDoubleSource;
+import microsim.statistics.IObjectSource;
+
+/**
+ * Opt-in cache of the scores of a regression, for processes that score the same agent several times per
+ * time step (e.g. alignment closures). getScore(Object) is computed once per agent and reused until the
+ * agent changes its {@link microsim.statistics.IVersionedSource} version or the cache is invalidated.
+ *
+ * Agents that do not implement IVersionedSource are never detected as changed, so the cache must be
+ * invalidated whenever their covariates may have changed, typically at each time step: schedule this
+ * object as an EventListener (any event type invalidates it) or call {@link #invalidate()}.
+ * Only the individual-based methods are cached; the others are passed on to the underlying regression.
+ * The cache is not synchronised: an instance must only be used by one thread at a time.
+ */
+public class MemoisedLinearRegression implements ILinearRegression, EventListener {
+
+	private final ILinearRegression regression;
+
+	private final RegressionMemo scores = new RegressionMemo();
+
+	public MemoisedLinearRegression(ILinearRegression regression) {
+		this.regression = regression;
+	}
+
+	/** Forget all the cached results. */
+	public void invalidate() {
+		scores.clear();
+	}
+
+	@Override
+	public void onEvent(Enum<?> type) {
+		invalidate();
+	}
+
+	public double getScore(Object individual) {
+		final RegressionMemo.Entry entry = scores.get(individual);
+		if (! entry.set) {
+			entry.value = regression.getScore(individual);
+			entry.set = true;
+		}
+		return entry.value;
+	}
+
+	/** The individuals whose scores are not cached are scored in one batch by the underlying regression. */
+	public void getScores(List<?> individuals, double[] scores) {
+		this.scores.getAll(individuals, scores, new RegressionMemo.BatchFunction() {
+			@Override
+			public void apply(List<Object> individuals, double[] values) {
+				regression.getScores(individuals, values);
+			}
+		});
+	}
+
+	public double getScore(Map<String, Double> values) {
+		return regression.getScore(values);
+	}
+
+	public <T extends Enum<T>> double getScore(IDoubleSource iDblSrc, Class<T> enumType) {
+		return regression.getScore(iDblSrc, enumType);
+	}
+
+	public <T extends Enum<T>, U extends Enum<U>> double getScore(IDoubleSource iDblSrc, Class<T> enumTypeDouble, IObjectSource iObjSrc, Class<U> enumTypeObject) {
+		return regression.getScore(iDblSrc, enumTypeDouble, iObjSrc, enumTypeObject);
+	}
+
+}
@@ -0,0 +1,144 @@
+package microsim.statistics.regression;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import microsim.data.MultiKeyCoefficientMap;
+import microsim.engine.SimulationEngine;
+
+/**
+ * Multinomial logit regression. Each event with a MultiKeyCoefficientMap has the linear score of its map,
+ * the base event (the one event without a map, if any) has a score of 0, and the probability of each
+ * event is the softmax of the scores.
+ *
+ * The covariates of an individual are extracted once for all the events, and the softmax is computed
+ * after subtracting the largest score, so that large scores do not overflow. Probabilities are stored
+ * in arrays indexed by the ordinal of the events. As buffers are reused between individuals, an instance
+ * must not be used by several threads at once.
+ */
+public class MultiLogitRegression<T extends Enum<T>> implements IMultipleChoiceRegression<T> {
+
+	private Random random;
+
+	private MultinomialScorer<T> scorer;
+
+	/** Scores and probabilities of the last individual, indexed by the ordinal of the event. */
+	private double[] scores, probs;
+
+	/** Ordinal of the event without coefficients, whose score is 0, or -1 if all events have coefficients. */
+	private int baseOrdinal = -1;
+
+	public MultiLogitRegression(Map<T, MultiKeyCoefficientMap> maps) {
+		this(maps, SimulationEngine.getRnd());
+	}
+
+	public MultiLogitRegression(Map<T, MultiKeyCoefficientMap> maps, Random random) {
+		this.random = random;
+		scorer = new MultinomialScorer<T>(maps);
+		scores = new double[scorer.outcomes.length];
+		probs = new double[scorer.outcomes.length];
+
+		for (int i = 0; i < scorer.outcomes.length; i++) {
+			if (scorer.getRegression(scorer.outcomes[i]) == null) {
+				if (baseOrdinal >= 0)
+					throw new IllegalArgumentException("More than one event of " + scorer.enumType.getSimpleName() + " has no coefficients in the MultiLogitRegression: only the base event can be left out of the maps.");
+				baseOrdinal = i;
+			}
+		}
+	}
+
+	/**
+	 * Softmax of the scores, subtracting the largest score before exponentiating.
+	 */
+	private void softmax(double[] scores, double[] probs) {
+		if (baseOrdinal >= 0)
+			scores[baseOrdinal] = 0.;
+
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < scores.length; i++)
+			if (scores[i] > max)
+				max = scores[i];
+
+		double denominator = 0.;
+		for (int i = 0; i < scores.length; i++) {
+			probs[i] = Math.exp(scores[i] - max);
+			denominator += probs[i];
+		}
+		for (int i = 0; i < probs.length; i++)
+			probs[i] /= denominator;
+	}
+
+	/**
+	 * Draw an event from the probabilities, scanning the cumulative probabilities in ordinal order.
+	 * The last event with a positive probability absorbs rounding errors.
+	 */
+	private T draw(double[] probs) {
+		final double toss = random.nextDouble();
+		double x = 0.;
+		int last = 0;
+		for (int i = 0; i < probs.length; i++) {
+			if (probs[i] > 0.) {
+				x += probs[i];
+				last = i;
+				if (toss < x)
+					return scorer.outcomes[i];
+			}
+		}
+		return scorer.outcomes[last];
+	}
+
+	/**
+	 * Store the probability of each event for the individual at the ordinal of the event.
+	 *
+	 * @param probabilities must have one element per constant of the event enum.
+	 */
+	public void getProbabilities(Object individual, double[] probabilities) {
+		scorer.getScores(individual, scores);
+		softmax(scores, probabilities);
+	}
+
+	/**
+	 * Warning - only use when the maps have only one key, the regressor, as for LinearRegression.getScore(Map).
+	 */
+	public void getProbabilities(Map<String, Double> values, double[] probabilities) {
+		scorer.getScores(values, scores);
+		softmax(scores, probabilities);
+	}
+
+	public T eventType(Object individual) {
+		getProbabilities(individual, probs);
+		return draw(probs);
+	}
+
+	/**
+	 * Warning - only use when the maps have only one key, the regressor, as for LinearRegression.getScore(Map).
+	 */
+	public T eventType(Map<String, Double> values) {
+		getProbabilities(values, probs);
+		return draw(probs);
+	}
+
+	/**
+	 * Draw the event type of a whole population in one pass, in list order, reusing the same buffers
+	 * for all individuals. The outcomes are the same as calling eventType(Object) on each individual in turn.
+	 */
+	public void eventTypes(List<?> individuals, T[] eventTypes) {
+		int i = 0;
+		for (Object individual : individuals) {
+			getProbabilities(individual, probs);
+			eventTypes[i++] = draw(probs);
+		}
+	}
+
+	/**
+	 * Store the probabilities of a whole population, those of the i-th individual in probabilities[i],
+	 * indexed by the ordinal of the events.
+	 */
+	public void getProbabilities(List<?> individuals, double[][] probabilities) {
+		int i = 0;
+		for (Object individual : individuals)
+			getProbabilities(individual, probabilities[i++]);
+	}
+
+}
@@ -1,14 +1,10 @@
 package microsim.statistics.regression;
 
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
-
-
-
-
 import microsim.data.MultiKeyCoefficientMap;
 import microsim.engine.SimulationEngine;
 import microsim.statistics.IDoubleSource;
@@ -22,6 +18,17 @@ public class MultiProbitRegression<T extends Enum<T>> implements IMultipleChoice
 	private Normal normalRV;
 	
 	private Map<T, MultiKeyCoefficientMap> maps = null;
+	
+	private MultinomialScorer<T> scorer;
+	
+	/** Scores and probabilities of the last individual, indexed by the ordinal of the event. */
+	private double[] scores, probs;
+	
+	/** Ordinal of the event without coefficients, whose probit transform is that of a score of 0, or -1 if all events have coefficients. */
+	private int baseOrdinal = -1;
+	
+	/** Number of events without coefficients; at most one is allowed. */
+	private int countNullEventProbs = 0;
 		
 	public MultiProbitRegression(Map<T, MultiKeyCoefficientMap> maps) {		
 		random = SimulationEngine.getRnd();
@@ -35,6 +42,7 @@ public class MultiProbitRegression<T extends Enum<T>> implements IMultipleChoice
 			}
 		}
 		normalRV = new Normal(0.0, 1.0, new MersenneTwister(random.nextInt()));
+		initScorer();
 	}
 
 	public MultiProbitRegression(Map<T, MultiKeyCoefficientMap> maps, Random random) {			
@@ -49,6 +57,21 @@ public class MultiProbitRegression<T extends Enum<T>> implements IMultipleChoice
 			}
 		}
 		normalRV = new Normal(0.0, 1.0, new MersenneTwister(random.nextInt()));
+		initScorer();
+	}
+	
+	private void initScorer() {
+		scorer = new MultinomialScorer<T>(maps);
+		scores = new double[scorer.outcomes.length];
+		probs = new double[scorer.outcomes.length];
+		
+		//Check whether there is a base case that has not been included in the regression specification variable (maps).
+		for (int i = 0; i < scorer.outcomes.length; i++) {
+			if (scorer.getRegression(scorer.outcomes[i]) == null) {		//The multiprobit regression can go without specifying coefficients for 1 of the outcomes as the probability of this event can be determined by the residual of the other probabilities.
+				countNullEventProbs++;
+				baseOrdinal = i;
+			}
+		}
 	}
 	
 	/**
@@ -58,57 +81,55 @@ public class MultiProbitRegression<T extends Enum<T>> implements IMultipleChoice
 	 * @return
 	 */
 	public double getProbitTransformOfScore(T event, Map<String, Double> values) {		
-		final double score = LinearRegression.computeScore(maps.get(event), values);		
-		return (double) normalRV.cdf(score);
+		final double score = scorer.getRegression(event).getScore(values);		
+		return LinkFunctions.probit(normalRV, score);
 	}
 	
 	public double getProbitTransformOfScore(T event, Object individual) {
-		final double score = LinearRegression.computeScore(maps.get(event), individual);
-		return (double) normalRV.cdf(score);		
+		final double score = scorer.getRegression(event).getScore(individual);
+		return LinkFunctions.probit(normalRV, score);		
 	}
 	
-	//Original version was incorrect - did not normalise probabilities.  Corrected by Ross Richardson.
-//	@Override
-	public T eventType(Object individual) {		
-		Map<T, Double> probs = new LinkedHashMap<T, Double>();
-
-		double denominator = 0.; 
+	/**
+	 * Normalise the probit transforms of the scores into probabilities, indexed by the ordinal of the event. 
+	 * The base case, if any, has a score of 0.
+	 */
+	private void normalise(double[] scores, double[] probs) {
+		if (countNullEventProbs > 1)			//Check no more than one event has null prob, so that it is valid to take the residual to find the probability
+			throw new RuntimeException("countNullEventProbs > 1 in MultiProbitRegression object!  More than one event does not have a probability, so the residual cannot be used for the missing probabilities.");
 		
-		for (T event : maps.keySet()) {
-			double probitTransformOfScore = getProbitTransformOfScore(event, individual);
-			probs.put(event, probitTransformOfScore);
-			denominator += probitTransformOfScore;			
+		double denominator = 0.;
+		for (int ordinal : scorer.modelled) {
+			final double probitTransformOfScore = LinkFunctions.probit(normalRV, scores[ordinal]);
+			probs[ordinal] = probitTransformOfScore;
+			denominator += probitTransformOfScore;
 		}
 		
-		//Check whether there is a base case that has not been included in the regression specification variable (maps).
-		T k = null;
-		T[] eventProbs = (T[]) k.getClass().getEnumConstants();
-		int countNullEventProbs = 0;
-		for (int i = 0; i < eventProbs.length; i++) {
-			if (probs.get(eventProbs[i]) == null) {						//The multiprobit regression can go without specifying coefficients for 1 of the outcomes as the probability of this event can be determined by the residual of the other probabilities.
-				countNullEventProbs++;									//Check no more than one event has null prob, so that it is valid to take the residual to find the probability
-				if(countNullEventProbs > 1) {
-					throw new RuntimeException("countNullEventProbs > 1 in MultiProbitRegression object!  More than one event does not have a probability, so the residual cannot be used for the missing probabilities.");
-				}
-				else {
-					denominator += 0.5;		//We include the base case, where score = 0 (as betas are set to zero).  The normalRV.cdf(0) = 0.5 (as the standard normal distribution is symmetric).  The other cases have already been incremented into the denominator.
-					probs.put((T) eventProbs[i], 0.5/denominator);		//The normalised probability of the base case is 0.5/denominator as the 0.5 comes from applying the probit transform (the cumulative standard normal distribution) to the score of 0, and the denominator is the sum of probit transforms for all events.				
-				}						
-			}			
+		if (baseOrdinal >= 0) {
+			denominator += 0.5;		//We include the base case, where score = 0 (as betas are set to zero).  The normalRV.cdf(0) = 0.5 (as the standard normal distribution is symmetric).  The other cases have already been incremented into the denominator.
+			probs[baseOrdinal] = 0.5/denominator;		//The normalised probability of the base case is 0.5/denominator as the 0.5 comes from applying the probit transform (the cumulative standard normal distribution) to the score of 0, and the denominator is the sum of probit transforms for all events.
 		}
 		
 		//Normalise the probabilities of the events specified in the regression maps
-		for (T event : maps.keySet()) {		//Only iterate through the cases specified in the regression maps - the base case has already been normalised.
-			double probitTransformOfScoreForEvent = probs.get(event);
-			probs.put(event, probitTransformOfScoreForEvent/denominator);		//Normalise the probit transform of score (the application of the standard normal cumulative distribution to the score) of the event by the sum for all events
-		}
-		
-		double[] probArray = new double[probs.size()]; 
-		for (int i = 0; i < eventProbs.length; i++) {
-			probArray[i] = probs.get(eventProbs[i]);
-		}
-		
-		return RegressionUtils.event(eventProbs, probArray, random);				
+		for (int ordinal : scorer.modelled)		//Only iterate through the cases specified in the regression maps - the base case has already been normalised.
+			probs[ordinal] = probs[ordinal]/denominator;		//Normalise the probit transform of score (the application of the standard normal cumulative distribution to the score) of the event by the sum for all events
+	}
+	
+	/**
+	 * Store the probability of each event for the individual at the ordinal of the event.
+	 * 
+	 * @param probabilities must have one element per constant of the event enum.
+	 */
+	public void getProbabilities(Object individual, double[] probabilities) {
+		scorer.getScores(individual, scores);
+		normalise(scores, probabilities);
+	}
+	
+	//Original version was incorrect - did not normalise probabilities.  Corrected by Ross Richardson.
+//	@Override
+	public T eventType(Object individual) {		
+		getProbabilities(individual, probs);
+		return RegressionUtils.event(scorer.outcomes, probs, random);				
 	}
 
 //	@Override
@@ -119,45 +140,21 @@ public class MultiProbitRegression<T extends Enum<T>> implements IMultipleChoice
 	 * @return
 	 */
 	public T eventType(Map<String, Double> values) {
-		Map<T, Double> probs = new LinkedHashMap<T, Double>();
-
-		double denominator = 0.0;
-
-		for (T event : maps.keySet()) {
-			double probitTransformOfScore = getProbitTransformOfScore(event, values);
-			probs.put(event, probitTransformOfScore);
-			denominator += probitTransformOfScore;			
-		}
-
-		//Check whether there is a base case that has not been included in the regression specification variable (maps).
-		T k = null;
-		T[] eventProbs = (T[]) k.getClass().getEnumConstants();
-		int countNullEventProbs = 0;
-		for (int i = 0; i < eventProbs.length; i++) {
-			if (probs.get(eventProbs[i]) == null) {						//The multiprobit regression can go without specifying coefficients for 1 of the outcomes as the probability of this event can be determined by the residual of the other probabilities.
-				countNullEventProbs++;									//Check no more than one event has null prob, so that it is valid to take the residual to find the probability
-				if(countNullEventProbs > 1) {
-					throw new RuntimeException("countNullEventProbs > 1 in MultiProbitRegression object!  More than one event does not have a probability, so the residual cannot be used for the missing probabilities.");
-				}
-				else {
-					denominator += 0.5;		//We include the base case, where score = 0 (as betas are set to zero).  The normalRV.cdf(0) = 0.5 (as the standard normal distribution is symmetric).  The other cases have already been incremented into the denominator.
-					probs.put((T) eventProbs[i], 0.5/denominator);		//The normalised probability of the base case is 0.5/denominator as the 0.5 comes from applying the probit transform (the cumulative standard normal distribution) to the score of 0, and the denominator is the sum of probit transforms for all events.				
-				}						
-			}			
-		}
-
-		//Normalise the probabilities of the events specified in the regression maps
-		for (T event : maps.keySet()) {		//Only iterate through the cases specified in the regression maps - the base case has already been normalised.
-			double probitTransformOfScoreForEvent = probs.get(event);
-			probs.put(event, probitTransformOfScoreForEvent/denominator);		//Normalise the probit transform of score (the application of the standard normal cumulative distribution to the score) of the event by the sum for all events
-		}
-
-		double[] probArray = new double[probs.size()]; 
-		for (int i = 0; i < eventProbs.length; i++) {
-			probArray[i] = probs.get(eventProbs[i]);
+		scorer.getScores(values, scores);
+		normalise(scores, probs);
+		return RegressionUtils.event(scorer.outcomes, probs, random);		
+	}
+	
+	/**
+	 * Draw the event type of a whole population in one pass, in list order, reusing the same buffers 
+	 * for all individuals. The outcomes are the same as calling eventType(Object) on each individual in turn.
+	 */
+	public void eventTypes(List<?> individuals, T[] eventTypes) {
+		int i = 0;
+		for (Object individual : individuals) {
+			getProbabilities(individual, probs);
+			eventTypes[i++] = RegressionUtils.event(scorer.outcomes, probs, random);
 		}
-
-		return RegressionUtils.event(eventProbs, probArray, random);		
 	}
 	
 	//////////////////////////////////////////////////////////////////////////////////////////////
@@ -167,52 +164,14 @@ public class MultiProbitRegression<T extends Enum<T>> implements IMultipleChoice
 	
 	public <E extends Enum<E>> double getProbitTransformOfScore(T event, IDoubleSource iDblSrc, Class<E> Regressors) {
 		final double score = LinearRegression.computeScore(maps.get(event), iDblSrc, Regressors);
-		return (double) normalRV.cdf(score);		
+		return LinkFunctions.probit(normalRV, score);		
 	}
 	
 	public <E extends Enum<E>> T eventType(IDoubleSource iDblSrc, Class<E> Regressors, Class<T> enumType) {		
-		Map<T, Double> probs = new LinkedHashMap<T, Double>();
-
-		double denominator = 0.; 
-		
-		for (T event : maps.keySet()) {
-			double probitTransformOfScore = getProbitTransformOfScore(event, iDblSrc, Regressors);
-			probs.put(event, probitTransformOfScore);
-			denominator += probitTransformOfScore;			
-		}
-		
-		//Check whether there is a base case that has not been included in the regression specification variable (maps).
-//		T k = null;
-//		T[] eventProbs = (T[]) k.getClass().getEnumConstants();		//Results in Null Pointer Exception
-		T[] eventProbs = enumType.getEnumConstants();
-//		T[] eventProbs = (T[]) maps.keySet().getClass().getEnumConstants();		//Results in Null Pointer Exception
-
-		int countNullEventProbs = 0;
-		for (int i = 0; i < eventProbs.length; i++) {
-			if (probs.get(eventProbs[i]) == null) {						//The multiprobit regression can go without specifying coefficients for 1 of the outcomes as the probability of this event can be determined by the residual of the other probabilities.
-				countNullEventProbs++;									//Check no more than one event has null prob, so that it is valid to take the residual to find the probability
-				if(countNullEventProbs > 1) {
-					throw new RuntimeException("countNullEventProbs > 1 in MultiProbitRegression object!  More than one event does not have a probability, so the residual cannot be used for the missing probabilities.");
-				}
-				else {
-					denominator += 0.5;		//We include the base case, where score = 0 (as betas are set to zero).  The normalRV.cdf(0) = 0.5 (as the standard normal distribution is symmetric).  The other cases have already been incremented into the denominator.
-					probs.put((T) eventProbs[i], 0.5/denominator);		//The normalised probability of the base case is 0.5/denominator as the 0.5 comes from applying the probit transform (the cumulative standard normal distribution) to the score of 0, and the denominator is the sum of probit transforms for all events.				
-				}						
-			}			
-		}
-		
-		//Normalise the probabilities of the events specified in the regression maps
-		for (T event : maps.keySet()) {		//Only iterate through the cases specified in the regression maps - the base case has already been normalised.
-			double probitTransformOfScoreForEvent = probs.get(event);
-			probs.put(event, probitTransformOfScoreForEvent/denominator);		//Normalise the probit transform of score (the application of the standard normal cumulative distribution to the score) of the event by the sum for all events
-		}
-		
-		double[] probArray = new double[probs.size()]; 
-		for (int i = 0; i < eventProbs.length; i++) {
-			probArray[i] = probs.get(eventProbs[i]);
-		}
-		
-		return RegressionUtils.event(eventProbs, probArray, random);				
+		for (int ordinal : scorer.modelled)
+			scores[ordinal] = LinearRegression.computeScore(maps.get(scorer.outcomes[ordinal]), iDblSrc, Regressors);
+		normalise(scores, probs);
+		return RegressionUtils.event(scorer.outcomes, probs, random);				
 	}
 
 	
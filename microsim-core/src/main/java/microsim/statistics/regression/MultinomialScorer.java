@@ -0,0 +1,186 @@
+package microsim.statistics.regression;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import microsim.data.MultiKeyCoefficientMap;
+
+/**
+ * Scores of all the outcomes of a multinomial choice model, one LinearRegression per modelled outcome,
+ * stored into arrays indexed by the ordinal of the outcome.
+ *
+ * When no map has conditioning keys the agents of a class are scored through a plan that extracts each
+ * covariate once per agent, over the union of the regressors of all outcomes, and multiplies it by the
+ * coefficients of each outcome, in the order of its map; scores are therefore the same as those of
+ * {@link LinearRegression#getScore(Object)}. Otherwise each outcome is scored by its own regression.
+ *
+ * The covariate buffers of the plans are reused, so a scorer must not be used by several threads at once.
+ */
+class MultinomialScorer<T extends Enum<T>> {
+
+	final Class<T> enumType;
+	/** All the outcomes, indexed by ordinal. */
+	final T[] outcomes;
+	/** Ordinals of the outcomes that have a coefficient map, in the iteration order of the maps. */
+	final int[] modelled;
+
+	private final MultiKeyCoefficientMap[] maps;
+	private final LinearRegression[] regressions;
+	private final boolean conditioned;
+
+	private final Map<Class<?>, Plan> plans = new ConcurrentHashMap<Class<?>, Plan>();
+
+	MultinomialScorer(Map<T, MultiKeyCoefficientMap> maps) {
+		if (maps == null || maps.isEmpty())
+			throw new IllegalArgumentException("The multinomial regression must have at least one coefficient map");
+
+		enumType = maps.keySet().iterator().next().getDeclaringClass();
+		outcomes = enumType.getEnumConstants();
+		modelled = new int[maps.size()];
+		this.maps = new MultiKeyCoefficientMap[outcomes.length];
+		regressions = new LinearRegression[outcomes.length];
+		boolean conditioned = false;
+		int i = 0;
+		for (Map.Entry<T, MultiKeyCoefficientMap> entry : maps.entrySet()) {
+			final int ordinal = entry.getKey().ordinal();
+			modelled[i++] = ordinal;
+			this.maps[ordinal] = entry.getValue();
+			regressions[ordinal] = new LinearRegression(entry.getValue());
+			conditioned |= entry.getValue().getKeysNames().length > 1;
+		}
+		this.conditioned = conditioned;
+	}
+
+	/** @return the regression of the outcome, or null if the outcome has no coefficient map. */
+	LinearRegression getRegression(T outcome) {
+		return regressions[outcome.ordinal()];
+	}
+
+	/** Store the score of each modelled outcome for the agent at the ordinal of the outcome. */
+	void getScores(Object agent, double[] scores) {
+		if (conditioned) {
+			for (int ordinal : modelled)
+				scores[ordinal] = regressions[ordinal].getScore(agent);
+			return;
+		}
+
+		Plan plan = plans.get(agent.getClass());
+		if (plan == null || plan.isStale()) {
+			plan = new Plan(agent.getClass());
+			plans.put(agent.getClass(), plan);
+		}
+		plan.score(agent, scores);
+	}
+
+	void getScores(Map<String, Double> values, double[] scores) {
+		for (int ordinal : modelled)
+			scores[ordinal] = regressions[ordinal].getScore(values);
+	}
+
+	/**
+	 * The covariates of one agent class and the coefficients of each outcome, pointing into the
+	 * union of the covariates.
+	 */
+	private class Plan {
+
+		/** Modification counts of the maps when the plan was built. */
+		private final int[] mapVersions = new int[outcomes.length];
+
+		// Where each covariate of the union is read from: the plan, group and index of its first occurrence
+		private final ScoringPlan[] sources;
+		private final ScoringPlan.Group[] sourceGroups;
+		private final int[] sourceIndexes;
+
+		/** For each outcome ordinal, the covariates of its coefficients. */
+		private final int[][] columns;
+		private final double[][] coefficients;
+
+		private final double[] covariates;
+		private final String[] errors;
+
+		Plan(Class<?> agentClass) {
+			final Map<String, Integer> union = new LinkedHashMap<String, Integer>();
+			final Map<String, Object[]> firstOccurrences = new LinkedHashMap<String, Object[]>();
+			columns = new int[outcomes.length][];
+			coefficients = new double[outcomes.length][];
+			for (int ordinal : modelled) {
+				mapVersions[ordinal] = maps[ordinal].getModificationCount();
+				final ScoringPlan plan = regressions[ordinal].getScoringPlan(agentClass);
+				final ScoringPlan.Group group = plan.getSingleGroup();
+				if (group == null) {
+					columns[ordinal] = new int[0];
+					coefficients[ordinal] = new double[0];
+					continue;
+				}
+
+				columns[ordinal] = new int[group.regressors.length];
+				coefficients[ordinal] = group.coefficients;
+				for (int i = 0; i < group.regressors.length; i++) {
+					Integer column = union.get(group.regressors[i]);
+					if (column == null) {
+						column = union.size();
+						union.put(group.regressors[i], column);
+						firstOccurrences.put(group.regressors[i], new Object[] { plan, group, i });
+					}
+					columns[ordinal][i] = column;
+				}
+			}
+
+			sources = new ScoringPlan[union.size()];
+			sourceGroups = new ScoringPlan.Group[union.size()];
+			sourceIndexes = new int[union.size()];
+			int j = 0;
+			for (Object[] occurrence : firstOccurrences.values()) {
+				sources[j] = (ScoringPlan) occurrence[0];
+				sourceGroups[j] = (ScoringPlan.Group) occurrence[1];
+				sourceIndexes[j] = (Integer) occurrence[2];
+				j++;
+			}
+			covariates = new double[union.size()];
+			errors = new String[union.size()];
+		}
+
+		boolean isStale() {
+			for (int ordinal : modelled)
+				if (mapVersions[ordinal] != maps[ordinal].getModificationCount())
+					return true;
+			return false;
+		}
+
+		void score(Object agent, double[] scores) {
+			for (int j = 0; j < covariates.length; j++) {
+				errors[j] = null;
+				try {
+					covariates[j] = sources[j].getCovariate(sourceGroups[j], sourceIndexes[j], agent);
+				} catch (RuntimeException e) {
+					if (! (e instanceof IllegalArgumentException))
+						throw e;
+					errors[j] = e.getMessage();
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable e) {
+					errors[j] = e.getMessage();
+				}
+			}
+
+			for (int ordinal : modelled) {
+				final int[] outcomeColumns = columns[ordinal];
+				final double[] outcomeCoefficients = coefficients[ordinal];
+				double score = 0.;
+				for (int i = 0; i < outcomeColumns.length; i++) {
+					final int column = outcomeColumns[i];
+					if (errors[column] != null) {
+						System.err.println(errors[column]);
+						score = 0.;
+						break;
+					}
+					score += covariates[column] * outcomeCoefficients[i];
+				}
+				scores[ordinal] = score;
+			}
+		}
+
+	}
+
+}
@@ -1,5 +1,6 @@
 package microsim.statistics.regression;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
@@ -30,12 +31,12 @@ public class ProbitRegression extends LinearRegression implements IBinaryChoiceR
 	
 	public double getProbability(Map<String, Double> values) {
 		final double score = super.getScore(values);		
-		return (double) normalRV.cdf(score);
+		return LinkFunctions.probit(normalRV, score);
 	}
 	
 	public double getProbability(Object individual) {
 		final double score = super.getScore(individual);		
-		return (double) normalRV.cdf(score);		
+		return LinkFunctions.probit(normalRV, score);		
 	}
 	
 //	@Override
@@ -50,13 +51,27 @@ public class ProbitRegression extends LinearRegression implements IBinaryChoiceR
 		return (random.nextDouble() < probability);		
 	}
 	
+	public void getProbabilities(List<?> individuals, double[] probabilities) {
+		getScores(individuals, probabilities);
+		final int n = individuals.size();
+		for (int i = 0; i < n; i++)
+			probabilities[i] = LinkFunctions.probit(normalRV, probabilities[i]);
+	}
+	
+	public void events(List<?> individuals, boolean[] events) {
+		final double[] probabilities = new double[individuals.size()];
+		getProbabilities(individuals, probabilities);
+		for (int i = 0; i < probabilities.length; i++)
+			events[i] = (random.nextDouble() < probabilities[i]);
+	}
+	
 	////////////////////////////////
 	//	New methods
 	//	@author Ross Richardson
 	////////////////////////////////
 	public <T extends Enum<T>> double getProbability(IDoubleSource iDblSrc, Class<T> enumType) {
 		final double score = super.getScore(iDblSrc, enumType);				
-		return (double) normalRV.cdf(score);
+		return LinkFunctions.probit(normalRV, score);
 	}
 	
 	public <T extends Enum<T>> boolean event(IDoubleSource iDblSrc, Class<T> enumType) {
@@ -66,7 +81,7 @@ public class ProbitRegression extends LinearRegression implements IBinaryChoiceR
 	
 	public <T extends Enum<T>, U extends Enum<U>> double getProbability(IDoubleSource iDblSrc, Class<T> enumTypeDbl, IObjectSource iObjSrc, Class<U> enumTypeObj) {
 		final double score = super.getScore(iDblSrc, enumTypeDbl, iObjSrc, enumTypeObj);		
-		return (double) normalRV.cdf(score);			
+		return LinkFunctions.probit(normalRV, score);			
 	}
 	
 	public <T extends Enum<T>, U extends Enum<U>> boolean event(IDoubleSource iDblSrc, Class<T> enumTypeDbl, IObjectSource iObjSrc, Class<U> enumTypeObj) {
@@ -0,0 +1,84 @@
+package microsim.statistics.regression;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import microsim.statistics.IVersionedSource;
+
+/**
+ * Results of a regression cached by agent identity. An entry is reused as long as the version of the agent,
+ * if it implements {@link IVersionedSource}, has not changed since the value was computed; agents that do not
+ * implement it keep their value until the memo is cleared.
+ *
+ * A memo is not thread-safe: the map and its entries are updated without synchronisation, so a memo (and the
+ * memoised regression that owns it) must only be used by one thread at a time, e.g. not from parallel scoring.
+ */
+class RegressionMemo {
+
+	static final class Entry {
+		long version;
+		double value;
+		boolean set;
+	}
+
+	/** The batch method of a regression: the value of the i-th agent of the list is stored in values[i]. */
+	interface BatchFunction {
+
+		void apply(List<Object> agents, double[] values);
+
+	}
+
+	private final Map<Object, Entry> entries = new IdentityHashMap<Object, Entry>();
+
+	/** @return the entry of the agent, whose value is set only if it was computed for the current version of the agent. */
+	Entry get(Object agent) {
+		final long version = agent instanceof IVersionedSource ? ((IVersionedSource) agent).getVersion() : 0L;
+		Entry entry = entries.get(agent);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(agent, entry);
+		} else if (entry.version != version)
+			entry.set = false;
+		entry.version = version;
+		return entry;
+	}
+
+	/**
+	 * Store the value of the i-th agent of the list in values[i], computing the values that are not cached 
+	 * in one call of the batch function and caching them.
+	 */
+	void getAll(List<?> agents, double[] values, BatchFunction function) {
+		final Entry[] agentEntries = new Entry[agents.size()];
+		final List<Object> missing = new ArrayList<Object>();
+		final List<Entry> missingEntries = new ArrayList<Entry>();
+		int i = 0;
+		for (Object agent : agents) {
+			final Entry entry = get(agent);
+			agentEntries[i++] = entry;
+			if (! entry.set) {
+				missing.add(agent);
+				missingEntries.add(entry);
+			}
+		}
+
+		if (! missing.isEmpty()) {
+			final double[] computed = new double[missing.size()];
+			function.apply(missing, computed);
+			for (int j = 0; j < computed.length; j++) {
+				final Entry entry = missingEntries.get(j);
+				entry.value = computed[j];
+				entry.set = true;
+			}
+		}
+
+		for (i = 0; i < agentEntries.length; i++)
+			values[i] = agentEntries[i].value;
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+}
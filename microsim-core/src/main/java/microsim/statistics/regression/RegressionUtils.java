@@ -16,7 +16,7 @@ import org.apache.commons.math3.random.RandomGenerator;
 
 public class RegressionUtils {
 
-	private static final double EPSILON = 1.e-15;	//Consider making larger if there are regular IllegalArgumentException throws due to an unnecessarily high requirement of precision.   
+	static final double EPSILON = 1.e-15;	//Consider making larger if there are regular IllegalArgumentException throws due to an unnecessarily high requirement of precision.   
 
 	public static <T> T event(Class<T> eventClass, double[] prob) {
 		return event(eventClass.getEnumConstants(), prob, SimulationEngine.getRnd());		
@@ -82,6 +82,7 @@ public class RegressionUtils {
 	 * the values, it will be very slow to call it in a loop, as the events[] and prob[] need to be 
 	 * extracted each time this method is called.  Better to use the other method 
 	 * (event(T[], Double[]) and do the extracting of the map outside of the loop!
+	 * When the same probabilities are sampled many times, a CategoricalSampler draws in constant time.
 	 * @param map
 	 * @param rnd
 	 * @return the event chosen
@@ -0,0 +1,293 @@
+package microsim.statistics.regression;
+
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import microsim.data.MultiKeyCoefficientMap;
+
+import org.apache.commons.beanutils.PropertyUtils;
+import org.apache.commons.collections.MapIterator;
+import org.apache.commons.collections.keyvalue.MultiKey;
+
+/**
+ * Compiled form of {@link LinearRegression#computeScore(MultiKeyCoefficientMap, Object)} for one coefficient map 
+ * and one agent class. 
+ * 
+ * The bean getters of the agent class are resolved once into method handles, and the coefficients are grouped 
+ * by the values of the conditioning keys (all keys but the regressor) into double arrays, in the iteration order 
+ * of the map. Scoring an agent looks up its group and computes a dot product, giving the same result, summed in 
+ * the same order, as the reflective method. When the map has no conditioning keys scoring does not allocate, as 
+ * long as the regressor getters return primitives.
+ */
+class ScoringPlan {
+
+	private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType DOUBLE_GETTER = MethodType.methodType(double.class, Object.class);
+	private static final MethodHandle BOOLEAN_TO_DOUBLE;
+	
+	static {
+		try {
+			BOOLEAN_TO_DOUBLE = MethodHandles.lookup().findStatic(ScoringPlan.class, "booleanToDouble", MethodType.methodType(double.class, boolean.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	@SuppressWarnings("unused")
+	private static double booleanToDouble(boolean b) {
+		return b ? 1.0 : 0.0;
+	}
+	
+	/** The coefficients that apply to agents with the same conditioning key values. */
+	static class Group {
+		
+		final String[] regressors;
+		/** Getters returning the covariate as a double, or returning a boxed number when boxed is set, or null when the agent has no numeric property with the regressor name. */
+		final MethodHandle[] covariates;
+		final boolean[] boxed;
+		final double[] coefficients;
+		
+		Group(String[] regressors, MethodHandle[] covariates, boolean[] boxed, double[] coefficients) {
+			this.regressors = regressors;
+			this.covariates = covariates;
+			this.boxed = boxed;
+			this.coefficients = coefficients;
+		}
+		
+	}
+	
+	final Class<?> agentClass;
+	/** Modification count of the map when the plan was built, to detect that the map has changed. */
+	final int mapVersion;
+	
+	private final String[] conditioningKeys;
+	private final MethodHandle[] conditioningGetters;
+	/** The only group when the map has no conditioning keys, null otherwise. */
+	private final Group single;
+	private final Map<String, Group> groups;
+	
+	ScoringPlan(MultiKeyCoefficientMap map, Class<?> agentClass) {
+		this.agentClass = agentClass;
+		this.mapVersion = map.getModificationCount();
+		
+		final Map<String, Method> getters = new HashMap<String, Method>();
+		for (PropertyDescriptor descriptor : PropertyUtils.getPropertyDescriptors(agentClass))
+			if (descriptor.getReadMethod() != null)
+				getters.put(descriptor.getName(), descriptor.getReadMethod());
+		
+		final String[] keys = map.getKeysNames();
+		final String regressorKey = RegressionColumnNames.REGRESSOR.toString();
+		int regressorColumnIndex = -1;
+		final List<Integer> conditioningColumns = new ArrayList<Integer>();
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i].equals(regressorKey))
+				regressorColumnIndex = i;
+			else
+				conditioningColumns.add(i);
+		}
+		if (regressorColumnIndex < 0)
+			throw new IllegalArgumentException("The MultiKeyCoefficientMap does not contain a key named " + regressorKey);
+		
+		conditioningKeys = new String[conditioningColumns.size()];
+		conditioningGetters = new MethodHandle[conditioningKeys.length];
+		for (int c = 0; c < conditioningKeys.length; c++) {
+			conditioningKeys[c] = keys[conditioningColumns.get(c)];
+			final Method getter = getters.get(conditioningKeys[c]);
+			conditioningGetters[c] = getter == null ? null : unreflect(getter).asType(OBJECT_GETTER);
+		}
+		
+		// Group the coefficients by conditioning key values, keeping the order of the map 
+		final boolean multipleValues = map.getValuesNames().length > 1;
+		final int coefficientColumn = Arrays.asList(map.getValuesNames()).indexOf(RegressionColumnNames.COEFFICIENT.toString());
+		final Map<String, List<Object[]>> rows = new LinkedHashMap<String, List<Object[]>>();
+		for (MapIterator iterator = map.mapIterator(); iterator.hasNext();) {
+			final MultiKey coeffMK = (MultiKey) iterator.next();
+			final StringBuilder groupKey = new StringBuilder();
+			for (int c = 0; c < conditioningKeys.length; c++) {
+				if (c > 0)
+					groupKey.append('\u0000');
+				groupKey.append(coeffMK.getKey(conditioningColumns.get(c)).toString());
+			}
+			
+			final double coefficient;
+			if (multipleValues)
+				coefficient = ((Number) ((Object[]) iterator.getValue())[coefficientColumn]).doubleValue();
+			else {
+				final Object value = iterator.getValue();
+				coefficient = ((Number) (value instanceof Object[] ? ((Object[]) value)[0] : value)).doubleValue();
+			}
+			
+			List<Object[]> groupRows = rows.get(groupKey.toString());
+			if (groupRows == null) {
+				groupRows = new ArrayList<Object[]>();
+				rows.put(groupKey.toString(), groupRows);
+			}
+			groupRows.add(new Object[] { coeffMK.getKey(regressorColumnIndex), coefficient });
+		}
+		
+		groups = new HashMap<String, Group>();
+		for (Map.Entry<String, List<Object[]>> entry : rows.entrySet()) {
+			final List<Object[]> groupRows = entry.getValue();
+			final int n = groupRows.size();
+			final String[] regressors = new String[n];
+			final MethodHandle[] covariates = new MethodHandle[n];
+			final boolean[] boxed = new boolean[n];
+			final double[] coefficients = new double[n];
+			for (int i = 0; i < n; i++) {
+				regressors[i] = (String) groupRows.get(i)[0];
+				coefficients[i] = (Double) groupRows.get(i)[1];
+				final Method getter = getters.get(regressors[i]);
+				if (getter == null)
+					continue;
+				final Class<?> type = getter.getReturnType();
+				if (type == double.class || type == float.class || type == long.class || type == int.class)
+					covariates[i] = unreflect(getter).asType(DOUBLE_GETTER);
+				else if (type == boolean.class)
+					covariates[i] = MethodHandles.filterReturnValue(unreflect(getter), BOOLEAN_TO_DOUBLE).asType(DOUBLE_GETTER);
+				else if (type == Double.class || type == Float.class || type == Long.class || type == Integer.class || type == Boolean.class) {
+					covariates[i] = unreflect(getter).asType(OBJECT_GETTER);
+					boxed[i] = true;
+				}
+			}
+			groups.put(entry.getKey(), new Group(regressors, covariates, boxed, coefficients));
+		}
+		single = conditioningKeys.length == 0 ? groups.get("") : null;
+	}
+	
+	private static MethodHandle unreflect(Method method) {
+		try {
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+	
+	/** @return the group of coefficients that apply to the agent, or null if there is none. */
+	Group getGroup(Object agent) throws Throwable {
+		if (conditioningKeys.length == 0)
+			return single;
+		
+		final StringBuilder groupKey = new StringBuilder();
+		for (int c = 0; c < conditioningKeys.length; c++) {
+			final Object value = conditioningGetters[c] == null ? null : (Object) conditioningGetters[c].invokeExact(agent);
+			if (! (value instanceof Double || value instanceof Integer || value instanceof Boolean || value instanceof String 
+					|| value instanceof Long || value instanceof Enum || value instanceof Float))
+				throw new IllegalArgumentException("The " + agent.getClass().getCanonicalName() + " object does not contain a member field called '" + conditioningKeys[c] + "' to match the conditioning key of the Regression object.  If you believe this should not be the case, consider checking the spelling and case (lower / upper) of the member field in the " + agent.getClass().getSimpleName() + " object.");
+			if (c > 0)
+				groupKey.append('\u0000');
+			groupKey.append(value.toString());
+		}
+		return groups.get(groupKey.toString());
+	}
+	
+	double getCovariate(Group group, int i, Object agent) throws Throwable {
+		final MethodHandle covariate = group.covariates[i];
+		if (covariate != null) {
+			if (! group.boxed[i])
+				return (double) covariate.invokeExact(agent);
+			final Object value = (Object) covariate.invokeExact(agent);
+			if (value instanceof Boolean)
+				return ((Boolean) value) ? 1.0 : 0.0;
+			if (value != null)
+				return ((Number) value).doubleValue();
+		}
+		throw new IllegalArgumentException(agent.getClass().getCanonicalName() + " object does not contain a field called " + group.regressors[i] + ".  If there is supposed to be such a field, check the upper/lower case of the regressor specified in the MultiKeyCoefficientMap of the Regression object to ensure that it matches the name of the " + agent.getClass().getSimpleName() + "object's field.");
+	}
+	
+	/** The number of regressors of the plan, when the map has no conditioning keys, 0 otherwise. */
+	int getSingleGroupSize() {
+		return single == null ? 0 : single.coefficients.length;
+	}
+	
+	/** @return the only group of coefficients when the map has no conditioning keys, null otherwise or when the map is empty. */
+	Group getSingleGroup() {
+		return single;
+	}
+	
+	boolean hasConditioningKeys() {
+		return conditioningKeys.length > 0;
+	}
+	
+	/**
+	 * Score agents[from, to), all of the plan's class, into scores[from, to) when the map has no conditioning keys. 
+	 * The covariates are first extracted into the column-major buffer, which must have getSingleGroupSize() rows 
+	 * of at least to - from elements, and then multiplied by the coefficients one column at a time. 
+	 * The scores are the same as those of {@link #score(Object)}.
+	 */
+	void score(Object[] agents, int from, int to, double[] scores, double[][] columns) {
+		Arrays.fill(scores, from, to, 0.);
+		if (single == null)
+			return;
+		
+		final double[] coefficients = single.coefficients;
+		boolean[] failed = null;
+		for (int i = from; i < to; i++) {
+			try {
+				for (int j = 0; j < coefficients.length; j++)
+					columns[j][i - from] = getCovariate(single, j, agents[i]);
+			} catch (RuntimeException e) {
+				if (! (e instanceof IllegalArgumentException))
+					throw e;
+				System.err.println(e.getMessage());
+				if (failed == null)
+					failed = new boolean[to - from];
+				failed[i - from] = true;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable e) {
+				System.err.println(e.getMessage());
+				if (failed == null)
+					failed = new boolean[to - from];
+				failed[i - from] = true;
+			}
+		}
+		
+		for (int j = 0; j < coefficients.length; j++) {
+			final double coefficient = coefficients[j];
+			final double[] column = columns[j];
+			for (int i = from; i < to; i++)
+				scores[i] += column[i - from] * coefficient;
+		}
+		
+		if (failed != null)
+			for (int i = from; i < to; i++)
+				if (failed[i - from])
+					scores[i] = 0.;
+	}
+	
+	/** Same as LinearRegression.computeScore(MultiKeyCoefficientMap, Object): errors are printed and give a score of 0. */
+	double score(Object agent) {
+		try {
+			final Group group = getGroup(agent);
+			if (group == null)
+				return 0.;
+			
+			final double[] coefficients = group.coefficients;
+			double score = 0.;
+			for (int i = 0; i < coefficients.length; i++)
+				score += getCovariate(group, i, agent) * coefficients[i];
+			return score;
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return 0;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			System.err.println(e.getMessage());
+			return 0;
+		}
+	}
+	
+}
@@ -0,0 +1,136 @@
+package microsim.alignment;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import microsim.alignment.probability.AlignmentProbabilityClosure;
+import microsim.alignment.probability.SBDAlignment;
+import microsim.engine.SimulationEngine;
+
+import org.apache.commons.collections.Predicate;
+import org.testng.annotations.Test;
+
+public class GroupAlignmentTest {
+
+	private static final int N = 3000;
+
+	/** Agents are the indexes of their probabilities; the aligned probabilities start as NaN. */
+	static class Population implements AlignmentProbabilityClosure<Integer> {
+
+		final double[] probabilities = new double[N];
+		final double[] aligned = new double[N];
+		final List<Integer> agents = new ArrayList<Integer>();
+
+		Population() {
+			final Random random = new Random(47);
+			for (int i = 0; i < N; i++) {
+				probabilities[i] = random.nextDouble();
+				agents.add(i);
+			}
+			Arrays.fill(aligned, Double.NaN);
+		}
+
+		@Override
+		public double getProbability(Integer agent) {
+			return probabilities[agent];
+		}
+
+		@Override
+		public void align(Integer agent, double alignedProbability) {
+			aligned[agent] = alignedProbability;
+		}
+
+	}
+
+	/** Cells are the agent index modulo 4. */
+	private static final GroupAlignment.Partition<Integer, Integer> PARTITION = new GroupAlignment.Partition<Integer, Integer>() {
+		@Override
+		public Integer getCell(Integer agent) {
+			return agent % 4;
+		}
+	};
+
+	/** Agents that are multiples of 5 are left out. */
+	private static final Predicate FILTER = new Predicate() {
+		@Override
+		public boolean evaluate(Object agent) {
+			return (Integer) agent % 5 != 0;
+		}
+	};
+
+	private static Map<Integer, Double> targets() {
+		// Cell 3 has no target, cell 7 has no agent
+		final Map<Integer, Double> targets = new LinkedHashMap<Integer, Double>();
+		targets.put(0, 0.1);
+		targets.put(1, 0.5);
+		targets.put(7, 0.3);
+		targets.put(2, 0.9);
+		return targets;
+	}
+
+	private static Population align(boolean parallel) {
+		final Population population = new Population();
+		final GroupAlignment<Integer, Integer> alignment = new GroupAlignment<Integer, Integer>(PARTITION);
+		alignment.setParallel(parallel);
+		SimulationEngine.getInstance().setRandomSeed(46);
+		alignment.align(population.agents, FILTER, new SBDAlignment<Integer>(), population, targets());
+		return population;
+	}
+
+	@Test
+	public void cellTargetsTest() {
+		final Population population = align(false);
+		final Map<Integer, Double> targets = targets();
+		final int[] size = new int[4];
+		final int[] selected = new int[4];
+		for (int i = 0; i < N; i++) {
+			if (i % 5 == 0 || i % 4 == 3) {
+				// Filtered out or in a cell without target: untouched
+				assertTrue(Double.isNaN(population.aligned[i]));
+				continue;
+			}
+			size[i % 4]++;
+			if (population.aligned[i] == 1.)
+				selected[i % 4]++;
+			else
+				assertEquals(population.aligned[i], 0.);
+		}
+		for (int cell = 0; cell < 3; cell++)
+			assertEquals(selected[cell], (int) Math.ceil(targets.get(cell) * size[cell]));
+	}
+
+	@Test
+	public void parallelTest() {
+		assertEquals(align(true).aligned, align(false).aligned);
+	}
+
+	@Test
+	public void factoryTest() {
+		final AtomicInteger created = new AtomicInteger();
+		final GroupAlignment.AlignmentFactory<SBDAlignment<Integer>> factory = new GroupAlignment.AlignmentFactory<SBDAlignment<Integer>>() {
+			@Override
+			public SBDAlignment<Integer> newAlignment() {
+				created.incrementAndGet();
+				return new SBDAlignment<Integer>();
+			}
+		};
+
+		final Population population = new Population();
+		final GroupAlignment<Integer, Integer> alignment = new GroupAlignment<Integer, Integer>(PARTITION);
+		SimulationEngine.getInstance().setRandomSeed(46);
+		alignment.align(population.agents, FILTER, factory, population, targets());
+
+		// One alignment per cell with agents and a target, and the same results as with a class
+		assertEquals(created.get(), 3);
+		assertEquals(population.aligned, align(false).aligned);
+	}
+
+}
@@ -0,0 +1,56 @@
+package microsim.alignment.outcome;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import microsim.statistics.regression.AgentCollection;
+import microsim.statistics.regression.AgentCollection.OurAgent;
+
+import org.testng.annotations.Test;
+
+public class ResamplingAlignmentTest {
+
+	@Test
+	public void householdResamplingTest() {
+		for (long seed = 0; seed < 20; seed++) {
+			// Households of two agents, whose outcomes are resampled together
+			final List<OurAgent> agents = new ArrayList<OurAgent>(new AgentCollection(20).getAgentList());
+			final int[] resamples = new int[1];
+			AlignmentOutcomeClosure<OurAgent> closure = new AlignmentOutcomeClosure<OurAgent>() {
+
+				@Override
+				public boolean getOutcome(OurAgent agent) {
+					return agent.age > 50;
+				}
+
+				@Override
+				public void resample(OurAgent agent) {
+					// An agent whose outcome has already changed with its household is not resampled again
+					assertFalse(getOutcome(agent), "Agent " + agent.getId() + " resampled after its outcome changed");
+					resamples[0]++;
+					int i = agents.indexOf(agent);
+					OurAgent partner = agents.get(i % 2 == 0 ? i + 1 : i - 1);
+					agent.age = 60;
+					partner.age = 60;
+				}
+			};
+
+			ResamplingAlignment<OurAgent> alignment = new ResamplingAlignment<OurAgent>();
+			alignment.setRandom(new Random(seed));
+			alignment.align(agents, null, closure, 8, 100);
+
+			int positives = 0;
+			for (OurAgent agent : agents)
+				if (closure.getOutcome(agent))
+					positives++;
+			assertEquals(positives, 2 * resamples[0]);
+			assertTrue(positives >= 8 && positives <= 2 * 8, "Positives " + positives);
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package microsim.alignment.probability;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import microsim.alignment.probability.LogitScalingAlignmentTest.Population;
+
+import org.testng.annotations.Test;
+
+public class AbstractProbabilityAlignmentTest {
+
+	/** The k largest scores by a full sort, NaN ranking lowest. */
+	private static double[] sortedLargest(double[] scores, int k) {
+		final double[] sorted = ranked(scores);
+		Arrays.sort(sorted);
+		final double[] largest = new double[k];
+		for (int i = 0; i < k; i++)
+			largest[i] = sorted[sorted.length - 1 - i];
+		return largest;
+	}
+
+	private static double[] ranked(double[] scores) {
+		final double[] ranked = scores.clone();
+		for (int i = 0; i < ranked.length; i++)
+			if (Double.isNaN(ranked[i]))
+				ranked[i] = Double.NEGATIVE_INFINITY;
+		return ranked;
+	}
+
+	private static void assertSelectLargest(double[] scores, int k) {
+		final int[] index = new int[scores.length];
+		for (int i = 0; i < index.length; i++)
+			index[i] = i;
+		AbstractProbabilityAlignment.selectLargest(scores, index, k);
+
+		// A permutation of the indexes, whose first k hold the k largest scores
+		final int[] sortedIndex = index.clone();
+		Arrays.sort(sortedIndex);
+		for (int i = 0; i < index.length; i++)
+			assertEquals(sortedIndex[i], i);
+		final double[] selected = new double[k];
+		for (int i = 0; i < k; i++)
+			selected[i] = scores[index[i]];
+		Arrays.sort(selected);
+		final double[] expected = sortedLargest(scores, k);
+		for (int i = 0; i < k; i++)
+			assertEquals(selected[k - 1 - i], expected[i], "k = " + k + " of " + Arrays.toString(scores));
+	}
+
+	private static void assertSelectTopShare(double[] scores, double targetShare) {
+		final double[] original = scores.clone();
+		final boolean[] selected = AbstractProbabilityAlignment.selectTopShare(scores, targetShare);
+		assertEquals(scores, original);
+
+		final int k = (int) Math.min(scores.length, Math.ceil(targetShare * scores.length));
+		final double[] ranked = ranked(scores);
+		double[] selectedScores = new double[0];
+		for (int i = 0; i < scores.length; i++) {
+			if (selected[i]) {
+				selectedScores = Arrays.copyOf(selectedScores, selectedScores.length + 1);
+				selectedScores[selectedScores.length - 1] = ranked[i];
+			}
+		}
+		assertEquals(selectedScores.length, k);
+		Arrays.sort(selectedScores);
+		final double[] expected = sortedLargest(scores, k);
+		for (int i = 0; i < k; i++)
+			assertEquals(selectedScores[k - 1 - i], expected[i], "share " + targetShare + " of " + Arrays.toString(scores));
+	}
+
+	private static double[] randomScores(Random random, int n, int distinct) {
+		final double[] scores = new double[n];
+		for (int i = 0; i < n; i++)
+			scores[i] = random.nextInt(distinct) - distinct / 2;
+		return scores;
+	}
+
+	@Test
+	public void selectLargestTest() {
+		final Random random = new Random(46);
+		for (int n = 0; n <= 40; n++) {
+			for (int distinct : new int[] { 1, 2, 5, 1000 }) {
+				final double[] scores = randomScores(random, n, distinct);
+				for (int k = 0; k <= n; k++)
+					assertSelectLargest(scores, k);
+			}
+		}
+
+		// Large inputs, including presorted ones that defeat naive pivots
+		for (int distinct : new int[] { 1, 3, 1000000 }) {
+			final double[] scores = randomScores(random, 5000, distinct);
+			for (int k : new int[] { 0, 1, 2500, 4999, 5000 })
+				assertSelectLargest(scores, k);
+			Arrays.sort(scores);
+			for (int k : new int[] { 1, 2500, 4999 })
+				assertSelectLargest(scores, k);
+		}
+	}
+
+	@Test
+	public void selectTopShareTest() {
+		final Random random = new Random(47);
+		final double[] special = { Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0. };
+		for (int n = 0; n <= 30; n++) {
+			for (int distinct : new int[] { 1, 4, 1000 }) {
+				final double[] scores = randomScores(random, n, distinct);
+				for (int i = 0; i < n; i++)
+					if (random.nextInt(3) == 0)
+						scores[i] = special[random.nextInt(special.length)];
+				for (double share : new double[] { 0., 0.01, 0.25, 0.5, 0.99, 1. })
+					assertSelectTopShare(scores, share);
+			}
+		}
+
+		final double[] allNaN = new double[10];
+		Arrays.fill(allNaN, Double.NaN);
+		assertSelectTopShare(allNaN, 0.3);
+	}
+
+	@Test
+	public void sbdlCertainOutcomesTest() {
+		// Half the agents have probability one: they are exactly the ones selected, whatever the draws
+		final double[] probabilities = new double[1000];
+		for (int i = 0; i < probabilities.length; i += 2)
+			probabilities[i] = 1.;
+		for (int seed = 0; seed < 20; seed++) {
+			final Population population = new Population(probabilities);
+			final SBDLAlignment<Integer> alignment = new SBDLAlignment<Integer>();
+			alignment.setRandom(new Random(seed));
+			alignment.align(population.agents, null, population, 0.5);
+			for (int i = 0; i < probabilities.length; i++)
+				assertEquals(population.aligned[i], probabilities[i]);
+		}
+	}
+
+}
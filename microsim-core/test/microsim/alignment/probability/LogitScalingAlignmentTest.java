@@ -0,0 +1,129 @@
+package microsim.alignment.probability;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class LogitScalingAlignmentTest {
+
+	/** Agents are the indexes of their probabilities. */
+	static class Population implements AlignmentProbabilityClosure<Integer> {
+		
+		final double[] probabilities;
+		final double[] aligned;
+		final List<Integer> agents = new ArrayList<Integer>();
+		
+		Population(double[] probabilities) {
+			this.probabilities = probabilities;
+			aligned = new double[probabilities.length];
+			for (int i = 0; i < probabilities.length; i++)
+				agents.add(i);
+		}
+		
+		@Override
+		public double getProbability(Integer agent) {
+			return probabilities[agent];
+		}
+		
+		@Override
+		public void align(Integer agent, double alignedProbability) {
+			aligned[agent] = alignedProbability;
+		}
+		
+		double alignedSum() {
+			double sum = 0.;
+			for (double p : aligned)
+				sum += p;
+			return sum;
+		}
+		
+	}
+	
+	private static LogitScalingAlignment<Integer> align(Population population, double targetShare) {
+		LogitScalingAlignment<Integer> alignment = new LogitScalingAlignment<Integer>();
+		alignment.align(population.agents, null, population, targetShare);
+		return alignment;
+	}
+	
+	@Test
+	public void sumEqualsTargetTest() {
+		Random rnd = new Random(3);
+		double[] probabilities = new double[1000];
+		for (int i = 0; i < probabilities.length; i++)
+			probabilities[i] = rnd.nextDouble();
+		for (double targetShare : new double[] { 0.01, 0.3, 0.5, 0.9, 0.999 }) {
+			Population population = new Population(probabilities);
+			LogitScalingAlignment<Integer> alignment = align(population, targetShare);
+			assertEquals(population.alignedSum(), targetShare * probabilities.length, 1.e-6, "Target share " + targetShare);
+			
+			// The same shift of the log-odds for every agent
+			for (int i = 0; i < probabilities.length; i++) {
+				double logOdds = Math.log(probabilities[i] / (1 - probabilities[i]));
+				assertEquals(population.aligned[i], 1. / (1. + Math.exp(- logOdds - alignment.getShift())), 1.e-12);
+			}
+		}
+	}
+	
+	@Test
+	public void fixedProbabilitiesTest() {
+		double[] probabilities = { 0., 1., 0.2, 0.4, 1., 0., 0.6, 0.3 };
+		Population population = new Population(probabilities);
+		align(population, 0.5);
+		for (int i = 0; i < probabilities.length; i++)
+			if (probabilities[i] == 0. || probabilities[i] == 1.)
+				assertEquals(population.aligned[i], probabilities[i]);
+		assertEquals(population.alignedSum(), 4., 1.e-9);
+	}
+	
+	@Test
+	public void extremeLogOddsTest() {
+		for (double p : new double[] { 1.e-60, 1.e-200 }) {
+			double[] probabilities = new double[1000];
+			for (int i = 0; i < probabilities.length; i++)
+				probabilities[i] = p;
+			Population population = new Population(probabilities);
+			align(population, 0.3);
+			assertEquals(population.alignedSum(), 300., 1.e-6, "p = " + p);
+			assertEquals(population.aligned[0], 0.3, 1.e-9, "p = " + p);
+		}
+		
+		// Log-odds spread over several hundreds
+		Random rnd = new Random(5);
+		double[] probabilities = new double[1000];
+		for (int i = 0; i < probabilities.length; i++)
+			probabilities[i] = i % 3 == 0 ? Math.pow(10., -1 - 199 * rnd.nextDouble()) : i % 3 == 1 ? 1. - 1.e-15 : 1.e-300;
+		for (double targetShare : new double[] { 0.1, 0.5, 0.7 }) {
+			Population population = new Population(probabilities);
+			align(population, targetShare);
+			assertEquals(population.alignedSum(), targetShare * probabilities.length, 1.e-6, "Target share " + targetShare);
+		}
+	}
+	
+	@Test
+	public void unreachableTargetTest() {
+		double[] probabilities = { 1., 1., 1., 0.5, 0.2, 0., 0.7, 0.4, 0.9, 0.1 };
+		
+		// Fewer positive outcomes than the agents whose probability is 1
+		Population population = new Population(probabilities);
+		assertEquals(align(population, 0.2).getShift(), Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < probabilities.length; i++)
+			assertEquals(population.aligned[i], probabilities[i] == 1. ? 1. : 0.);
+		
+		// More positive outcomes than the agents whose probability is not 0
+		population = new Population(probabilities);
+		assertEquals(align(population, 1.).getShift(), Double.POSITIVE_INFINITY);
+		for (int i = 0; i < probabilities.length; i++)
+			assertEquals(population.aligned[i], probabilities[i] == 0. ? 0. : 1.);
+		
+		// All the probabilities are 0
+		population = new Population(new double[] { 0., 0., 0. });
+		align(population, 0.5);
+		assertTrue(population.alignedSum() == 0.);
+	}
+	
+}
@@ -0,0 +1,99 @@
+package microsim.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import microsim.data.db.DatabaseUtils;
+import microsim.data.db.Experiment;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ExperimentManagerTest {
+
+	File folder;
+	File inputFolder;
+	
+	@BeforeMethod
+	public void createInput() throws IOException {
+		folder = File.createTempFile("experiment", "");
+		folder.delete();
+		inputFolder = new File(folder, "input");
+		inputFolder.mkdirs();
+		write(new File(inputFolder, "input.h2.db"));
+		write(new File(inputFolder, "parameters.txt"));
+	}
+	
+	private static void write(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+	}
+	
+	@AfterMethod
+	public void deleteFolder() {
+		delete(folder);
+		ExperimentManager manager = ExperimentManager.getInstance();
+		manager.shareInputDatabase = false;
+		manager.saveExperimentOnDatabase = true;
+		manager.copyInputFolderStructure = true;
+		DatabaseUtils.inputReadOnly = false;
+		DatabaseUtils.databaseInputUrl = null;
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+	
+	private Experiment setup(boolean shareInputDatabase) throws Exception {
+		ExperimentManager manager = ExperimentManager.getInstance();
+		manager.copyInputFolderStructure = true;
+		manager.saveExperimentOnDatabase = false;
+		manager.shareInputDatabase = shareInputDatabase;
+		Experiment experiment = manager.createExperiment("test");
+		experiment.inputFolder = inputFolder.getPath();
+		experiment.outputRootFolder = new File(folder, "output").getPath();
+		experiment.runId = shareInputDatabase ? "shared" : "copied";
+		return manager.setupExperiment(experiment);
+	}
+	
+	@Test
+	public void shareWithoutSavingTest() throws Exception {
+		Experiment experiment = setup(true);
+		File runInput = new File(experiment.getOutputFolder(), "input");
+		
+		// The database is not copied, and the run reads it read-only from the input folder
+		assertTrue(new File(runInput, "parameters.txt").exists());
+		assertFalse(new File(runInput, "input.h2.db").exists());
+		assertEquals(DatabaseUtils.databaseInputUrl, inputFolder.getPath() + File.separator + "input");
+		assertTrue(DatabaseUtils.inputReadOnly);
+		
+		// A later experiment that does not share the database is not read-only
+		experiment = setup(false);
+		assertTrue(new File(new File(experiment.getOutputFolder(), "input"), "input.h2.db").exists());
+		assertFalse(DatabaseUtils.inputReadOnly);
+	}
+	
+	@Test
+	public void copyKeepsModificationTimeTest() throws Exception {
+		File source = new File(inputFolder, "input.h2.db");
+		assertTrue(source.setLastModified(1000000000000L));
+		File outFolder = new File(folder, "copy");
+		ExperimentManager.getInstance().copy(source.getPath(), outFolder.getPath());
+		
+		File copy = new File(outFolder, "input.h2.db");
+		assertEquals(copy.length(), source.length());
+		assertEquals(copy.lastModified(), source.lastModified());
+	}
+	
+}
@@ -0,0 +1,108 @@
+package microsim.data;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class MultiKeyHashMapTest {
+
+	enum Gender { Male, Female }
+
+	/** A key element whose instances all have the same hash code, so that every probe collides. */
+	static class Colliding {
+		final int id;
+		Colliding(int id) {
+			this.id = id;
+		}
+		@Override
+		public int hashCode() {
+			return 42;
+		}
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Colliding && ((Colliding) o).id == id;
+		}
+	}
+
+	private static Object randomElement(Random rnd) {
+		switch (rnd.nextInt(5)) {
+			case 0: return rnd.nextInt(40);
+			case 1: return Gender.values()[rnd.nextInt(2)];
+			case 2: return "k" + rnd.nextInt(10);
+			case 3: return new Colliding(rnd.nextInt(10));
+			default: return rnd.nextInt(10) == 0 ? null : (long) rnd.nextInt(10);
+		}
+	}
+
+	private static void check(MultiKeyHashMap map, Map<List<Object>, Object[]> reference) {
+		assertEquals(map.size(), reference.size());
+		assertEquals(map.isEmpty(), reference.isEmpty());
+		Iterator<MultiKeyHashMap.EntryValue> iterator = map.iterator();
+		for (Map.Entry<List<Object>, Object[]> entry : reference.entrySet()) {
+			MultiKeyHashMap.EntryValue entryValue = iterator.next();
+			assertEquals(Arrays.asList(entryValue.getKeyArray()), entry.getKey());
+			assertSame(entryValue.getValueArray(), entry.getValue());
+			assertSame(map.get(entry.getKey().toArray()), entry.getValue());
+		}
+		assertEquals(iterator.hasNext(), false);
+	}
+
+	@Test
+	public void randomOperationsTest() {
+		for (long seed = 0; seed < 20; seed++) {
+			Random rnd = new Random(seed);
+			MultiKeyHashMap map = new MultiKeyHashMap();
+			Map<List<Object>, Object[]> reference = new LinkedHashMap<List<Object>, Object[]>();
+
+			for (int op = 0; op < 20000; op++) {
+				Object[] key = { randomElement(rnd), randomElement(rnd) };
+				List<Object> referenceKey = Arrays.asList(key.clone());
+				int action = rnd.nextInt(100);
+				if (action < 50) {
+					Object[] value = { op };
+					assertSame(map.put(key, value), reference.put(referenceKey, value));
+				} else if (action < 85) {
+					assertSame(map.remove(key), reference.remove(referenceKey));
+				} else if (action < 99) {
+					assertSame(map.get(key), reference.get(referenceKey));
+					assertEquals(map.containsKey(key), reference.containsKey(referenceKey));
+				} else if (rnd.nextInt(20) == 0) {
+					map.clear();
+					reference.clear();
+				}
+				if (op % 1000 == 0)
+					check(map, reference);
+			}
+			check(map, reference);
+		}
+	}
+
+	@Test
+	public void primitiveKeysTest() {
+		MultiKeyHashMap map = new MultiKeyHashMap(2);
+		Object[] value = { 1. };
+		map.put(new Object[] { 3, Gender.Female }, value);
+		map.put(new Object[] { 3L, 4L }, value);
+		assertSame(map.get(new int[] { 3, 1 }), value);
+		assertNull(map.get(new int[] { 3, 0 }));
+		assertSame(map.get(new long[] { 3L, 4L }), value);
+		assertNull(map.get(new long[] { 3L, 1L }));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void wrongArityTest() {
+		MultiKeyHashMap map = new MultiKeyHashMap();
+		map.put(new Object[] { 1, 2 }, new Object[] { 0 });
+		map.get(1);
+	}
+
+}
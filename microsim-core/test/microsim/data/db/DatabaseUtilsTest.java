@@ -0,0 +1,45 @@
+package microsim.data.db;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class DatabaseUtilsTest {
+
+	/** The partitions are contiguous, cover min to max and are no more than needed. */
+	private static void assertPartitions(long min, long max, int threads, int maxPartitions) {
+		final List<long[]> partitions = DatabaseUtils.getPartitions(min, max, threads);
+		assertTrue(partitions.size() >= 1 && partitions.size() <= maxPartitions, partitions.size() + " partitions");
+		assertEquals(partitions.get(0)[0], min);
+		assertEquals(partitions.get(partitions.size() - 1)[1], max);
+		for (int i = 0; i < partitions.size(); i++) {
+			assertTrue(partitions.get(i)[0] <= partitions.get(i)[1]);
+			if (i > 0)
+				assertEquals(partitions.get(i)[0], partitions.get(i - 1)[1] + 1);
+		}
+	}
+
+	@Test
+	public void partitionsTest() {
+		assertPartitions(1, 100, 4, 4);
+		assertPartitions(1, 101, 4, 4);
+		assertPartitions(7, 7, 4, 1);
+		assertPartitions(1, 3, 8, 3);
+		assertPartitions(-50, 50, 3, 3);
+	}
+
+	@Test
+	public void largestIdsTest() {
+		// The last partition ends at the largest id, which is included
+		assertPartitions(Integer.MAX_VALUE - 10, Integer.MAX_VALUE, 4, 4);
+		assertPartitions(Integer.MIN_VALUE, Integer.MAX_VALUE, 4, 4);
+		assertPartitions(Long.MAX_VALUE - 10, Long.MAX_VALUE, 4, 4);
+		assertPartitions(0, Long.MAX_VALUE, 1, 1);
+		assertPartitions(Long.MIN_VALUE, Long.MAX_VALUE, 1, 3);
+		assertPartitions(Long.MIN_VALUE, Long.MAX_VALUE, 4, 9);
+	}
+
+}
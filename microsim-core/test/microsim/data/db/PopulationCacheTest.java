@@ -0,0 +1,201 @@
+package microsim.data.db;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import microsim.data.CoefficientMapCache;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PopulationCacheTest {
+
+	public enum Gender { Male, Female }
+
+	public enum ReorderedGender { Female, Male }
+
+	public static class Person {
+		public long id;
+		public Integer age;
+		public String name;
+		public Gender gender;
+		public Date birth;
+		public double income;
+	}
+
+	/** Same fields as Person, but with the constants of the enum in another order. */
+	public static class ReorderedPerson {
+		public long id;
+		public Integer age;
+		public String name;
+		public ReorderedGender gender;
+		public Date birth;
+		public double income;
+	}
+
+	public static class Event {
+		public java.sql.Date day;
+		public Timestamp time;
+	}
+
+	public static class Choice {
+		public Gender gender;
+	}
+
+	private File folder;
+
+	@BeforeMethod
+	public void createFolder() throws IOException {
+		folder = File.createTempFile("population-cache", "");
+		folder.delete();
+		folder.mkdirs();
+	}
+
+	@AfterMethod
+	public void deleteFolder() {
+		for (File file : folder.listFiles())
+			file.delete();
+		folder.delete();
+	}
+
+	private List<Person> population() {
+		List<Person> agents = new ArrayList<Person>();
+		for (int i = 0; i < 100; i++) {
+			Person person = new Person();
+			person.id = 1000000000000L + i;
+			person.age = i % 10 == 0 ? null : i;
+			person.name = i % 7 == 0 ? null : "Person é " + i;
+			person.gender = i % 5 == 0 ? null : Gender.values()[i % 2];
+			person.birth = new Date(86400000L * i);
+			person.income = i * 1.5;
+			agents.add(person);
+		}
+		return agents;
+	}
+
+	@Test
+	public void roundTripTest() throws IOException {
+		List<Person> agents = population();
+		PopulationCache.FieldPlan plan = new PopulationCache.FieldPlan(Person.class);
+		File file = new File(folder, "people.bin");
+		PopulationCache.write(file, agents, plan);
+
+		List<Person> loaded = PopulationCache.read(file, Person.class, plan);
+		assertEquals(loaded.size(), agents.size());
+		for (int i = 0; i < agents.size(); i++) {
+			assertEquals(loaded.get(i).id, agents.get(i).id);
+			assertEquals(loaded.get(i).age, agents.get(i).age);
+			assertEquals(loaded.get(i).name, agents.get(i).name);
+			assertEquals(loaded.get(i).gender, agents.get(i).gender);
+			assertEquals(loaded.get(i).birth, agents.get(i).birth);
+			assertEquals(loaded.get(i).income, agents.get(i).income);
+		}
+	}
+
+	@Test
+	public void loadTableFromCacheTest() throws IOException {
+		File database = new File(folder, "input.h2.db");
+		FileOutputStream out = new FileOutputStream(database);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+
+		List<Person> agents = population();
+		PopulationCache.FieldPlan plan = new PopulationCache.FieldPlan(Person.class);
+		PopulationCache.write(new File(folder, PopulationCache.cacheFileName(plan, CoefficientMapCache.fingerprint(database))), agents, plan);
+
+		// A cache hit does not need the entity manager
+		List<Person> loaded = PopulationCache.loadTable(null, Person.class, CoefficientMapCache.fingerprint(database), folder);
+		assertEquals(loaded.size(), agents.size());
+		assertEquals(loaded.get(3).name, agents.get(3).name);
+	}
+
+	@Test
+	public void mismatchIsMissTest() throws IOException {
+		File file = new File(folder, "people.bin");
+		PopulationCache.write(file, population(), new PopulationCache.FieldPlan(Person.class));
+		assertNull(PopulationCache.read(file, ReorderedPerson.class, new PopulationCache.FieldPlan(ReorderedPerson.class)));
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { 0, 1, 2 });
+		out.close();
+		assertNull(PopulationCache.read(file, Person.class, new PopulationCache.FieldPlan(Person.class)));
+	}
+
+	@Test
+	public void enumConstantsTest() {
+		String signature = new PopulationCache.FieldPlan(Person.class).signature();
+		String reordered = new PopulationCache.FieldPlan(ReorderedPerson.class).signature();
+		assertTrue(signature.contains("[Male,Female,]"), signature);
+		assertTrue(reordered.contains("[Female,Male,]"), reordered);
+		assertFalse(PopulationCache.cacheFileName(new PopulationCache.FieldPlan(Person.class), 1L)
+				.equals(PopulationCache.cacheFileName(new PopulationCache.FieldPlan(ReorderedPerson.class), 1L)));
+	}
+
+	@Test
+	public void sqlDatesTest() throws IOException {
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 3; i++) {
+			Event event = new Event();
+			event.day = i == 1 ? null : new java.sql.Date(86400000L * i);
+			event.time = new Timestamp(1500000000000L + i);
+			event.time.setNanos(123456789);
+			events.add(event);
+		}
+		PopulationCache.FieldPlan plan = new PopulationCache.FieldPlan(Event.class);
+		File file = new File(folder, "events.bin");
+		PopulationCache.write(file, events, plan);
+
+		List<Event> loaded = PopulationCache.read(file, Event.class, plan);
+		for (int i = 0; i < events.size(); i++) {
+			assertEquals(loaded.get(i).day, events.get(i).day);
+			assertEquals(loaded.get(i).time, events.get(i).time);
+			assertEquals(loaded.get(i).time.getNanos(), 123456789);
+		}
+	}
+
+	@Test
+	public void truncatedIsMissTest() throws IOException {
+		PopulationCache.FieldPlan plan = new PopulationCache.FieldPlan(Person.class);
+		File file = new File(folder, "people.bin");
+		PopulationCache.write(file, population(), plan);
+		long length = file.length();
+		for (long truncated : new long[] { length - 1, length / 2, 12 }) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(truncated);
+			raf.close();
+			assertNull(PopulationCache.read(file, Person.class, plan), "Truncated to " + truncated);
+		}
+	}
+
+	@Test
+	public void ordinalOutOfRangeIsMissTest() throws IOException {
+		Choice choice = new Choice();
+		choice.gender = Gender.Female;
+		List<Choice> choices = new ArrayList<Choice>();
+		choices.add(choice);
+		PopulationCache.FieldPlan plan = new PopulationCache.FieldPlan(Choice.class);
+		File file = new File(folder, "choices.bin");
+		PopulationCache.write(file, choices, plan);
+		assertEquals(PopulationCache.read(file, Choice.class, plan).get(0).gender, Gender.Female);
+
+		// The file ends with the ordinal of the only agent
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 2);
+		raf.writeShort(7);
+		raf.close();
+		assertNull(PopulationCache.read(file, Choice.class, plan));
+	}
+
+}
@@ -0,0 +1,54 @@
+package microsim.data.db.space;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class SpaceEntityPersisterTest {
+
+	@Test
+	public void rasterRoundTripTest() throws IOException {
+		// Larger than one chunk, and not a multiple of it
+		int length = 3 * 65536 + 17;
+		int[] matrix = new int[length];
+		Random rnd = new Random(1);
+		for (int i = 0; i < length; i++)
+			matrix[i] = i % 7 == 0 ? rnd.nextInt() : i / 100;
+		
+		int[] decoded = new int[length];
+		SpaceEntityPersister.decodeRaster(SpaceEntityPersister.encodeRaster(matrix, length), decoded, length);
+		assertEquals(decoded, matrix);
+	}
+	
+	@Test
+	public void rasterPrefixTest() throws IOException {
+		int[] matrix = { 1, -2, 3, Integer.MAX_VALUE, Integer.MIN_VALUE, 6 };
+		int[] decoded = new int[matrix.length];
+		SpaceEntityPersister.decodeRaster(SpaceEntityPersister.encodeRaster(matrix, 4), decoded, 4);
+		assertEquals(decoded, new int[] { 1, -2, 3, Integer.MAX_VALUE, 0, 0 });
+	}
+	
+	@Test
+	public void emptyRasterTest() throws IOException {
+		int[] decoded = new int[0];
+		SpaceEntityPersister.decodeRaster(SpaceEntityPersister.encodeRaster(new int[0], 0), decoded, 0);
+		assertEquals(decoded.length, 0);
+	}
+	
+	@Test(expectedExceptions = IOException.class)
+	public void shortRasterTest() throws IOException {
+		int[] matrix = new int[100];
+		Arrays.fill(matrix, 5);
+		SpaceEntityPersister.decodeRaster(SpaceEntityPersister.encodeRaster(matrix, 100), new int[101], 101);
+	}
+	
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void invalidBatchSizeTest() {
+		SpaceEntityPersister.setBatchSize(0);
+	}
+	
+}
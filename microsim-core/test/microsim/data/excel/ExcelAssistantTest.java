@@ -0,0 +1,68 @@
+package microsim.data.excel;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import microsim.data.MultiKeyCoefficientMap;
+
+import org.apache.commons.collections.MapIterator;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.testng.annotations.Test;
+
+public class ExcelAssistantTest {
+
+	/** Two sheets: Sheet1 has the content of regression.xls, Cells has one cell of each kind. */
+	static final String XLSX = "test/microsim/data/excel/coefficients.xlsx";
+	static final String XLS = "test/microsim/statistics/regression/regression.xls";
+
+	@Test
+	public void xlsxMatchesXlsTest() {
+		MultiKeyCoefficientMap xls = ExcelAssistant.loadCoefficientMap(XLS, "Sheet1", 1, 1);
+		MultiKeyCoefficientMap xlsx = ExcelAssistant.loadCoefficientMap(XLSX, "Sheet1", 1, 1);
+
+		assertEquals(xlsx.getKeysNames(), xls.getKeysNames());
+		assertEquals(xlsx.getValuesNames(), xls.getValuesNames());
+		assertEquals(xlsx.size(), xls.size());
+		assertEquals(xls.size(), 12);
+		for (MapIterator iterator = xls.mapIterator(); iterator.hasNext();) {
+			MultiKey key = (MultiKey) iterator.next();
+			assertEquals(xlsx.getValue(key.getKeys()), iterator.getValue(), "Value of " + key);
+		}
+	}
+
+	@Test
+	public void xlsxCellTypesTest() throws IOException {
+		final List<Integer> rowIndexes = new ArrayList<Integer>();
+		final List<Object[]> rows = new ArrayList<Object[]>();
+		ExcelAssistant.readSheet(XLSX, "Cells", 8, new SheetRowHandler() {
+			@Override
+			public void row(int rowIndex, Object[] cells) {
+				rowIndexes.add(rowIndex);
+				rows.add(cells);
+			}
+		});
+
+		// The empty second row is not reported, and cells beyond the requested columns are dropped
+		assertEquals(rowIndexes.size(), 2);
+		assertEquals((int) rowIndexes.get(0), 0);
+		assertEquals((int) rowIndexes.get(1), 2);
+
+		// Shared string (without its phonetic run), rich inline string, number, cached numeric and string formula
+		// results, then an empty cell, a date cell and an error cell, which are all null
+		assertEquals(rows.get(0), new Object[] { "Label", "Inline", 2.5, 4, "text", null, null, null });
+		assertEquals(rows.get(1), new Object[] { true, null, 7, null, null, null, null, null });
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void missingSheetTest() throws IOException {
+		ExcelAssistant.readSheet(XLSX, "Missing", 2, new SheetRowHandler() {
+			@Override
+			public void row(int rowIndex, Object[] cells) {
+			}
+		});
+	}
+
+}
@@ -0,0 +1,39 @@
+package microsim.statistics.regression;
+
+import java.util.Random;
+
+/**
+ * Compares the time of the draws of {@link CategoricalSampler} (alias method) with {@link RegressionUtils#event(Object[], double[], Random)}
+ * (linear scan of the cumulative probabilities). It is not a unit test, as it only prints timings: run its main method by hand,
+ * optionally with the number of draws as argument.
+ */
+public class CategoricalSamplerBenchmark {
+
+	enum Outcome { A, B, C, D, E }
+
+	public static void main(String[] args) {
+		final int draws = (args.length > 0 ? Integer.parseInt(args[0]) : 10000000);
+		final double[] prob = { 0.05, 0.4, 0.0, 0.25, 0.3 };
+		final Outcome[] events = Outcome.values();
+		final CategoricalSampler<Outcome> sampler = new CategoricalSampler<Outcome>(events, prob);
+		final Random rnd = new Random(1);
+		int check = 0;
+
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < draws; i++)
+				check += RegressionUtils.event(events, prob, rnd).ordinal();
+			final long scan = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < draws; i++)
+				check += sampler.next(rnd).ordinal();
+			final long alias = System.nanoTime() - start;
+
+			// The first rounds warm up the JIT; the check sum keeps the draws from being optimised away
+			System.out.println("Round " + round + ": " + draws + " draws, RegressionUtils.event " + scan / 1000000 + "ms, alias method "
+					+ alias / 1000000 + "ms (" + check + ")");
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package microsim.statistics.regression;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class CategoricalSamplerTest {
+
+	enum Outcome { A, B, C, D, E }
+	
+	double[] prob = { 0.05, 0.4, 0.0, 0.25, 0.3 };
+	int draws = 1000000;
+	
+	@Test
+	public void frequenciesTest() {
+		CategoricalSampler<Outcome> sampler = new CategoricalSampler<Outcome>(Outcome.values(), prob);
+		Random rnd = new Random(42);
+		int[] counts = new int[prob.length];
+		for (int i = 0; i < draws; i++)
+			counts[sampler.nextIndex(rnd)]++;
+		
+		for (int i = 0; i < prob.length; i++)
+			assertEquals(counts[i] / (double) draws, prob[i], 0.002, "Frequency of " + Outcome.values()[i]);
+	}
+	
+	@Test
+	public void setProbabilitiesTest() {
+		CategoricalSampler<Outcome> sampler = new CategoricalSampler<Outcome>(Outcome.values(), prob);
+		sampler.setProbabilities(new double[] { 0., 0., 1., 0., 0. });
+		Random rnd = new Random(42);
+		for (int i = 0; i < 1000; i++)
+			assertEquals(sampler.next(rnd), Outcome.C);
+	}
+	
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void invalidProbabilitiesTest() {
+		new CategoricalSampler<Outcome>(Outcome.values(), new double[] { 0.5, 0.4, 0., 0., 0. });
+	}
+	
+	@Test
+	public void mapEventsTest() {
+		Map<Outcome, Double> map = new EnumMap<Outcome, Double>(Outcome.class);
+		for (Outcome outcome : Outcome.values())
+			map.put(outcome, prob[outcome.ordinal()]);
+		CategoricalSampler<Outcome> sampler = new CategoricalSampler<Outcome>(map);
+		Outcome[] events = sampler.getEvents();
+		assertEquals(events, Outcome.values());
+	}
+	
+}
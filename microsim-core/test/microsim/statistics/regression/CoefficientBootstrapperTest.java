@@ -0,0 +1,90 @@
+package microsim.statistics.regression;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+import microsim.data.MultiKeyCoefficientMap;
+
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.testng.annotations.Test;
+
+public class CoefficientBootstrapperTest {
+
+	String[] regressors = { "a", "b", "c" };
+	double[] estimates = { 1., -2., 0.5 };
+	double[][] covariance = {
+			{ 0.04, 0.01, -0.006 },
+			{ 0.01, 0.09, 0.012 },
+			{ -0.006, 0.012, 0.01 } };
+	
+	private MultiKeyCoefficientMap map(double[][] covariance) {
+		String[] values = new String[regressors.length + 1];
+		values[0] = "ESTIMATE";
+		System.arraycopy(regressors, 0, values, 1, regressors.length);
+		MultiKeyCoefficientMap map = new MultiKeyCoefficientMap(new String[] { "REGRESSOR" }, values);
+		for (int i = 0; i < regressors.length; i++) {
+			Object[] row = new Object[values.length];
+			row[0] = estimates[i];
+			for (int j = 0; j < regressors.length; j++)
+				row[j + 1] = covariance[i][j];
+			map.put(new MultiKey(new Object[] { regressors[i] }), row);
+		}
+		return map;
+	}
+	
+	@Test
+	public void reproducibleReplicateTest() {
+		CoefficientBootstrapper bootstrapper = new CoefficientBootstrapper(map(covariance));
+		MultiKeyCoefficientMap[] replicates = bootstrapper.getReplicates(42, 10);
+		for (int r = 0; r < replicates.length; r++) {
+			// A replicate only depends on the seed and its number, even from another instance
+			MultiKeyCoefficientMap replicate = new CoefficientBootstrapper(map(covariance)).getReplicate(42, r);
+			for (String regressor : regressors)
+				assertEquals(replicate.getValue(regressor), replicates[r].getValue(regressor), "Replicate " + r + ", " + regressor);
+		}
+		assertNotEquals(replicates[0].getValue("a"), replicates[1].getValue("a"));
+		assertNotEquals(bootstrapper.getReplicate(43, 0).getValue("a"), replicates[0].getValue("a"));
+	}
+	
+	@Test
+	public void sampleCovarianceTest() {
+		int replications = 100000;
+		double[][] coefficients = new CoefficientBootstrapper(map(covariance)).getReplicateCoefficients(7, replications);
+		int n = regressors.length;
+		double[] mean = new double[n];
+		for (double[] replicate : coefficients)
+			for (int i = 0; i < n; i++)
+				mean[i] += replicate[i] / replications;
+		for (int i = 0; i < n; i++)
+			assertEquals(mean[i], estimates[i], 0.005, "Mean of " + regressors[i]);
+		
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double sample = 0.;
+				for (double[] replicate : coefficients)
+					sample += (replicate[i] - mean[i]) * (replicate[j] - mean[j]) / (replications - 1);
+				assertEquals(sample, covariance[i][j], 0.002, "Covariance of " + regressors[i] + " and " + regressors[j]);
+			}
+		}
+	}
+	
+	@Test
+	public void roundedAsymmetryTest() {
+		double[][] rounded = new double[covariance.length][];
+		for (int i = 0; i < covariance.length; i++)
+			rounded[i] = covariance[i].clone();
+		rounded[0][1] += 1.e-12;
+		rounded[2][1] -= 1.e-12;
+		new CoefficientBootstrapper(map(rounded)).getReplicate(1, 0);
+	}
+	
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void asymmetricCovarianceTest() {
+		double[][] asymmetric = new double[covariance.length][];
+		for (int i = 0; i < covariance.length; i++)
+			asymmetric[i] = covariance[i].clone();
+		asymmetric[0][1] = 0.02;
+		new CoefficientBootstrapper(map(asymmetric));
+	}
+	
+}
@@ -1,10 +1,13 @@
 package microsim.statistics.regression;
 
+import static org.testng.Assert.assertEquals;
+
 import org.testng.annotations.Test;
 
 import microsim.data.MultiKeyCoefficientMap;
 import microsim.data.excel.ExcelAssistant;
 import microsim.engine.SimulationEngine;
+import microsim.statistics.IObjectSource;
 import microsim.statistics.regression.AgentCollection.OurAgent;
 
 import org.testng.annotations.BeforeMethod;
@@ -72,6 +75,35 @@ public class LinearRegressionDeterminismTest {
 		  
 	  }
 
+	  public enum Conditioning {
+		  gender,
+	  }
+
+	  @Test
+	  public void inPlaceEditTest() {
+		  OurAgent agent = agents.getAgentList().get(0);
+		  MultiKeyCoefficientMap map = new MultiKeyCoefficientMap(new String[] { "REGRESSOR" }, new String[] { "COEFFICIENT" });
+		  map.putValue("age", 2.);
+		  LinearRegression regression = new LinearRegression(map);
+		  assertEquals(regression.getScore(agent), 2. * agent.getAge());
+
+		  // Changing a coefficient leaves the size of the map unchanged, but the cached plan must see it
+		  map.putValue("age", 5.);
+		  assertEquals(regression.getScore(agent), 5. * agent.getAge());
+
+		  IObjectSource female = new IObjectSource() {
+			  @Override
+			  public Object getObjectValue(Enum<?> variableID) {
+				  return "Female";
+			  }
+		  };
+		  MultiKeyCoefficientMap conditioned = new MultiKeyCoefficientMap(new String[] { "REGRESSOR", "gender" }, new String[] { "COEFFICIENT" });
+		  conditioned.putValue("age", "Female", 2.);
+		  regression = new LinearRegression(conditioned);
+		  assertEquals(regression.getScore(agent, AgentCollection.Regressors.class, female, Conditioning.class), 2. * agent.getAge());
+		  conditioned.putValue("age", "Female", 5.);
+		  assertEquals(regression.getScore(agent, AgentCollection.Regressors.class, female, Conditioning.class), 5. * agent.getAge());
+	  }
 	
 	  @BeforeClass
 	  public void beforeClass() {
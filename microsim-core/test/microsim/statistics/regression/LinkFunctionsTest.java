@@ -0,0 +1,49 @@
+package microsim.statistics.regression;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import cern.jet.stat.Probability;
+
+public class LinkFunctionsTest {
+
+	@Test
+	public void normalCdfAccuracyTest() {
+		double maxError = 0.;
+		for (double x = -12.; x <= 12.; x += 1.e-4)
+			maxError = Math.max(maxError, Math.abs(LinkFunctions.normalCdf(x) - Probability.normal(x)));
+		assertTrue(maxError < LinkFunctions.MAX_ERROR, "Max error " + maxError);
+	}
+	
+	@Test
+	public void logisticAccuracyTest() {
+		double maxError = 0.;
+		for (double x = -50.; x <= 50.; x += 1.e-4)
+			maxError = Math.max(maxError, Math.abs(LinkFunctions.logistic(x) - LinkFunctions.exactLogistic(x)));
+		assertTrue(maxError < LinkFunctions.MAX_ERROR, "Max error " + maxError);
+	}
+	
+	@Test
+	public void limitsTest() {
+		assertEquals(LinkFunctions.normalCdf(Double.NEGATIVE_INFINITY), 0.);
+		assertEquals(LinkFunctions.normalCdf(Double.POSITIVE_INFINITY), 1.);
+		assertEquals(LinkFunctions.logistic(-1000.), 0.);
+		assertEquals(LinkFunctions.logistic(1000.), 1.);
+		assertTrue(Double.isNaN(LinkFunctions.normalCdf(Double.NaN)));
+		assertTrue(Double.isNaN(LinkFunctions.logistic(Double.NaN)));
+	}
+	
+	@Test
+	public void tableBoundariesTest() {
+		// Inputs just inside the range of the tables, whose position rounds to the last point of the table
+		double[] normalInputs = { Math.nextAfter(8., 0.), Math.nextAfter(-8., 0.), 8., -8., Math.nextAfter(8., 9.), Math.nextAfter(-8., -9.) };
+		for (double x : normalInputs)
+			assertEquals(LinkFunctions.normalCdf(x), Probability.normal(x), LinkFunctions.MAX_ERROR, "normalCdf(" + x + ")");
+		double[] logisticInputs = { Math.nextAfter(37., 0.), Math.nextAfter(-37., 0.), 37., -37., Math.nextAfter(37., 38.), Math.nextAfter(-37., -38.) };
+		for (double x : logisticInputs)
+			assertEquals(LinkFunctions.logistic(x), LinkFunctions.exactLogistic(x), LinkFunctions.MAX_ERROR, "logistic(" + x + ")");
+	}
+	
+}
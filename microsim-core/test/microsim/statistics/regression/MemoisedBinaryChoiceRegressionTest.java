@@ -0,0 +1,74 @@
+package microsim.statistics.regression;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import microsim.data.MultiKeyCoefficientMap;
+import microsim.statistics.regression.AgentCollection.OurAgent;
+
+import org.testng.annotations.Test;
+
+public class MemoisedBinaryChoiceRegressionTest {
+
+	/** A logit regression recording the size of each batch it computes. */
+	static class CountingLogitRegression extends LogitRegression {
+		
+		List<Integer> batches = new ArrayList<Integer>();
+		
+		CountingLogitRegression(MultiKeyCoefficientMap map) {
+			super(map, new Random(1));
+		}
+		
+		@Override
+		public double getProbability(Object individual) {
+			batches.add(1);
+			return super.getProbability(individual);
+		}
+		
+		@Override
+		public void getProbabilities(List<?> individuals, double[] probabilities) {
+			batches.add(individuals.size());
+			int i = 0;
+			for (Object individual : individuals)
+				probabilities[i++] = 1. / (1. + Math.exp(- getScore(individual)));
+		}
+		
+	}
+	
+	@Test
+	public void batchOfUncachedAgentsTest() {
+		MultiKeyCoefficientMap map = new MultiKeyCoefficientMap(new String[] { "REGRESSOR" }, new String[] { "COEFFICIENT" });
+		map.putValue("age", 0.1);
+		CountingLogitRegression logit = new CountingLogitRegression(map);
+		MemoisedBinaryChoiceRegression memo = new MemoisedBinaryChoiceRegression(logit, new Random(1));
+		
+		List<OurAgent> agents = new ArrayList<OurAgent>(new AgentCollection(5).getAgentList());
+		for (int i = 0; i < agents.size(); i++)
+			agents.get(i).age = 10 * i;
+		
+		double[] probabilities = new double[agents.size()];
+		memo.getProbabilities(agents, probabilities);
+		for (int i = 0; i < agents.size(); i++)
+			assertEquals(probabilities[i], 1. / (1. + Math.exp(- 0.1 * agents.get(i).age)), 1.e-12);
+		assertEquals(logit.batches.size(), 1);
+		assertEquals(logit.batches.get(0).intValue(), 5);
+		
+		// Cached values are not computed again
+		assertEquals(memo.getProbability(agents.get(3)), probabilities[3]);
+		memo.getProbabilities(agents, probabilities);
+		assertEquals(logit.batches.size(), 1);
+		
+		// Only the agents that are not cached any more are sent, in one batch
+		memo.invalidate();
+		memo.getProbability(agents.get(1));
+		double[] again = new double[agents.size()];
+		memo.getProbabilities(agents, again);
+		assertEquals(logit.batches.size(), 3);
+		assertEquals(logit.batches.get(2).intValue(), 4);
+		assertEquals(again, probabilities);
+	}
+	
+}
@@ -0,0 +1,104 @@
+package microsim.statistics.regression;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import microsim.data.MultiKeyCoefficientMap;
+
+import org.testng.annotations.Test;
+
+public class MultiLogitRegressionTest {
+
+	enum Outcome { Low, Mid, High }
+	
+	private static MultiKeyCoefficientMap map(double x, double y) {
+		MultiKeyCoefficientMap map = new MultiKeyCoefficientMap(new String[] { "REGRESSOR" }, new String[] { "COEFFICIENT" });
+		map.putValue("x", x);
+		map.putValue("y", y);
+		return map;
+	}
+	
+	private static Map<String, Double> values(double x, double y) {
+		Map<String, Double> values = new HashMap<String, Double>();
+		values.put("x", x);
+		values.put("y", y);
+		return values;
+	}
+	
+	@Test
+	public void softmaxTest() {
+		Map<Outcome, MultiKeyCoefficientMap> maps = new LinkedHashMap<Outcome, MultiKeyCoefficientMap>();
+		maps.put(Outcome.Low, map(0.3, -1.));
+		maps.put(Outcome.Mid, map(1., 0.5));
+		maps.put(Outcome.High, map(-0.7, 2.));
+		MultiLogitRegression<Outcome> regression = new MultiLogitRegression<Outcome>(maps, new Random(1));
+		
+		double x = 1.5, y = -0.4;
+		double[] exp = { Math.exp(0.3 * x - 1. * y), Math.exp(1. * x + 0.5 * y), Math.exp(-0.7 * x + 2. * y) };
+		double sum = exp[0] + exp[1] + exp[2];
+		double[] probs = new double[3];
+		regression.getProbabilities(values(x, y), probs);
+		for (Outcome outcome : Outcome.values())
+			assertEquals(probs[outcome.ordinal()], exp[outcome.ordinal()] / sum, 1.e-12, outcome.toString());
+	}
+	
+	@Test
+	public void baseOutcomeTest() {
+		// Low has no coefficients, so its score is 0
+		Map<Outcome, MultiKeyCoefficientMap> maps = new LinkedHashMap<Outcome, MultiKeyCoefficientMap>();
+		maps.put(Outcome.High, map(-0.7, 2.));
+		maps.put(Outcome.Mid, map(1., 0.5));
+		MultiLogitRegression<Outcome> regression = new MultiLogitRegression<Outcome>(maps, new Random(1));
+		
+		double x = 0.8, y = 0.1;
+		double[] exp = { 1., Math.exp(1. * x + 0.5 * y), Math.exp(-0.7 * x + 2. * y) };
+		double sum = exp[0] + exp[1] + exp[2];
+		double[] probs = new double[3];
+		regression.getProbabilities(values(x, y), probs);
+		for (Outcome outcome : Outcome.values())
+			assertEquals(probs[outcome.ordinal()], exp[outcome.ordinal()] / sum, 1.e-12, outcome.toString());
+		
+		// Drawn frequencies follow the probabilities, whatever the order of the maps
+		int draws = 200000;
+		int[] counts = new int[3];
+		for (int i = 0; i < draws; i++)
+			counts[regression.eventType(values(x, y)).ordinal()]++;
+		for (Outcome outcome : Outcome.values())
+			assertEquals(counts[outcome.ordinal()] / (double) draws, probs[outcome.ordinal()], 0.005, outcome.toString());
+	}
+	
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void twoBaseOutcomesTest() {
+		Map<Outcome, MultiKeyCoefficientMap> maps = new LinkedHashMap<Outcome, MultiKeyCoefficientMap>();
+		maps.put(Outcome.Mid, map(1., 0.5));
+		new MultiLogitRegression<Outcome>(maps, new Random(1));
+	}
+	
+	@Test
+	public void largeScoresTest() {
+		Map<Outcome, MultiKeyCoefficientMap> maps = new LinkedHashMap<Outcome, MultiKeyCoefficientMap>();
+		maps.put(Outcome.Mid, map(1000., 0.));
+		maps.put(Outcome.High, map(999., 0.));
+		MultiLogitRegression<Outcome> regression = new MultiLogitRegression<Outcome>(maps, new Random(1));
+		
+		// Scores of 1000 and 999 overflow exp() unless the largest score is subtracted first
+		double[] probs = new double[3];
+		regression.getProbabilities(values(1., 0.), probs);
+		for (double p : probs)
+			assertFalse(Double.isNaN(p));
+		assertEquals(probs[Outcome.Low.ordinal()], 0., 1.e-300);
+		assertEquals(probs[Outcome.Mid.ordinal()], 1. / (1. + Math.exp(-1.)), 1.e-12);
+		assertEquals(probs[Outcome.High.ordinal()], 1. / (1. + Math.exp(1.)), 1.e-12);
+		
+		// Large negative scores leave the base outcome certain
+		regression.getProbabilities(values(-1., 0.), probs);
+		assertEquals(probs[Outcome.Low.ordinal()], 1., 1.e-12);
+		assertEquals(regression.eventType(values(-1., 0.)), Outcome.Low);
+	}
+	
+}
@@ -0,0 +1,106 @@
+package microsim.statistics.regression;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import microsim.data.MultiKeyCoefficientMap;
+import microsim.statistics.regression.AgentCollection.OurAgent;
+
+import org.testng.annotations.Test;
+
+import cern.jet.random.Normal;
+import cern.jet.random.engine.MersenneTwister;
+
+public class MultiProbitRegressionTest {
+
+	enum Outcome { Low, Mid, High }
+	
+	long seed = 1234;
+	int population = 5000;
+	
+	private Map<Outcome, MultiKeyCoefficientMap> maps() {
+		Map<Outcome, MultiKeyCoefficientMap> maps = new LinkedHashMap<Outcome, MultiKeyCoefficientMap>();
+		MultiKeyCoefficientMap mid = new MultiKeyCoefficientMap(new String[] { "REGRESSOR" }, new String[] { "COEFFICIENT" });
+		mid.putValue("age", 0.02);
+		mid.putValue("field1", 0.8);
+		maps.put(Outcome.Mid, mid);
+		MultiKeyCoefficientMap high = new MultiKeyCoefficientMap(new String[] { "REGRESSOR" }, new String[] { "COEFFICIENT" });
+		high.putValue("age", -0.01);
+		high.putValue("field1", -0.5);
+		maps.put(Outcome.High, high);
+		return maps;
+	}
+	
+	private List<OurAgent> agents() {
+		List<OurAgent> agents = new AgentCollection(population).getAgentList();
+		Random rnd = new Random(7);
+		for (OurAgent agent : agents) {
+			agent.age = rnd.nextInt(90);
+			agent.field1 = 2 * rnd.nextGaussian();
+		}
+		return new ArrayList<OurAgent>(agents);
+	}
+	
+	/** The draw of eventType(IDoubleSource, Class, Class) before it was moved onto the multinomial scorer. */
+	private static Outcome legacyEventType(Map<Outcome, MultiKeyCoefficientMap> maps, Normal normalRV, OurAgent agent, Random random) {
+		Map<Outcome, Double> probs = new LinkedHashMap<Outcome, Double>();
+		double denominator = 0.;
+		for (Outcome event : maps.keySet()) {
+			double probitTransformOfScore = normalRV.cdf(LinearRegression.computeScore(maps.get(event), agent, AgentCollection.Regressors.class));
+			probs.put(event, probitTransformOfScore);
+			denominator += probitTransformOfScore;
+		}
+		Outcome[] eventProbs = Outcome.values();
+		for (int i = 0; i < eventProbs.length; i++) {
+			if (probs.get(eventProbs[i]) == null) {
+				denominator += 0.5;
+				probs.put(eventProbs[i], 0.5 / denominator);
+			}
+		}
+		for (Outcome event : maps.keySet())
+			probs.put(event, probs.get(event) / denominator);
+		double[] probArray = new double[probs.size()];
+		for (int i = 0; i < eventProbs.length; i++)
+			probArray[i] = probs.get(eventProbs[i]);
+		return RegressionUtils.event(eventProbs, probArray, random);
+	}
+	
+	@Test
+	public void sameEventsAsLegacyTest() {
+		Map<Outcome, MultiKeyCoefficientMap> maps = maps();
+		List<OurAgent> agents = agents();
+		
+		// The legacy draws, with the random streams seeded as the constructor seeds them
+		Random legacyRandom = new Random(seed);
+		Normal normalRV = new Normal(0.0, 1.0, new MersenneTwister(legacyRandom.nextInt()));
+		Outcome[] expected = new Outcome[agents.size()];
+		for (int i = 0; i < expected.length; i++)
+			expected[i] = legacyEventType(maps, normalRV, agents.get(i), legacyRandom);
+		
+		MultiProbitRegression<Outcome> enumRegression = new MultiProbitRegression<Outcome>(maps, new Random(seed));
+		MultiProbitRegression<Outcome> objectRegression = new MultiProbitRegression<Outcome>(maps, new Random(seed));
+		MultiProbitRegression<Outcome> batchRegression = new MultiProbitRegression<Outcome>(maps, new Random(seed));
+		Outcome[] batch = new Outcome[agents.size()];
+		batchRegression.eventTypes(agents, batch);
+		
+		int[] counts = new int[Outcome.values().length];
+		for (int i = 0; i < expected.length; i++) {
+			OurAgent agent = agents.get(i);
+			assertEquals(enumRegression.eventType(agent, AgentCollection.Regressors.class, Outcome.class), expected[i], "Agent " + i);
+			assertEquals(objectRegression.eventType(agent), expected[i], "Agent " + i);
+			assertEquals(batch[i], expected[i], "Agent " + i);
+			counts[expected[i].ordinal()]++;
+		}
+		
+		// Every outcome is drawn, so the comparison covers the base case as well
+		for (Outcome outcome : Outcome.values())
+			assertTrue(counts[outcome.ordinal()] > 0, "No draw of " + outcome);
+	}
+	
+}